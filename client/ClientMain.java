@@ -26,6 +26,10 @@ public class ClientMain extends JFrame {
     private HashMap<String, JLabel> typingIndicators = new HashMap<>();
     private Timer typingTimer;
     private static final int TYPING_DELAY_MS = 5000;
+    // Selama masih mengetik, TYPING_START dikirim ulang sebagai keep-alive
+    // (server membuang duplikatnya, tapi memakai untuk memperpanjang status)
+    private static final int TYPING_REFRESH_MS = 3000;
+    private long lastTypingStartAt = 0;
     // ------------------------------------------
 
     // --- Komponen GUI ---
@@ -166,9 +170,11 @@ public class ClientMain extends JFrame {
 
                 // Indikator hanya untuk Private Chat
                 if (!recipient.equals("ALL") && clientService.isConnected()) {
-                    if (!typingTimer.isRunning()) {
-                        // Mulai mengetik (jika sebelumnya stop)
+                    long now = System.currentTimeMillis();
+                    if (!typingTimer.isRunning() || now - lastTypingStartAt >= TYPING_REFRESH_MS) {
+                        // Mulai mengetik (jika sebelumnya stop) atau keep-alive
                         clientService.sendTypingStart(recipient);
+                        lastTypingStartAt = now;
                     }
                     // Reset timer, memberi 2 detik lagi sebelum TYPING_STOP dikirim
                     typingTimer.restart();
@@ -426,6 +432,17 @@ public class ClientMain extends JFrame {
         }
     }
 
+    // Delta presence: ubah list di tempat, tanpa clear & isi ulang
+    public void userJoined(String user) {
+        if (!user.equalsIgnoreCase(this.currentUsername) && !userListModel.contains(user)) {
+            userListModel.addElement(user);
+        }
+    }
+
+    public void userLeft(String user) {
+        userListModel.removeElement(user);
+    }
+
     public void triggerBuzz(String sender) {
         // Cek apakah pengirim bukan diri sendiri DAN kita punya chat history sama dia
         if (!sender.equals(currentUsername) && chatPanels.containsKey(sender)) {
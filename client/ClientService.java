@@ -1,15 +1,31 @@
 package client;
 
+import common.ContentProof;
 import common.Message;
 import common.MessageType;
+import common.WireFormat;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.swing.SwingUtilities;
 
 /**
@@ -19,23 +35,53 @@ import javax.swing.SwingUtilities;
 public class ClientService {
 
     private Socket socket;
-    private ObjectOutputStream output;
-    private ObjectInputStream input;
+    private DataOutputStream output;
+    private DataInputStream input;
     private ClientMain gui; // Referensi ke GUI utama untuk update
 
+    // Lock penulisan ke socket. Fair: chat/kontrol yang menunggu mendapat giliran
+    // di batas frame berikutnya, tidak tersalip chunk file yang terus mengantri
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+
     // --- STATE MANAGEMENT UNTUK FILE RECEIVING ---
-    // Diubah menjadi volatile untuk penulisan antar-thread (Listener Thread vs File
-    // Writer Thread)
-    private volatile FileOutputStream currentFileWriter;
-    private String receivingFileName;
-    private volatile long totalBytesReceived = 0;
-    private long expectedFileSize = 0;
+    // Disk I/O dikerjakan DownloadWriter; listener memegang tabel download aktif
+    // per transferId (beberapa pengirim bisa mengirim bersamaan)
+    // Dibuat saat connect() pertama (bukan di konstruktor, supaya 'this' tidak bocor
+    // sebelum objek selesai dibuat); dipakai ulang untuk koneksi berikutnya
+    private volatile DownloadWriter downloadWriter;
+    private final Map<Long, DownloadWriter.Download> downloads = new ConcurrentHashMap<>();
+    // Port koneksi langsung yang kita tawarkan per transferId (sisi penerima)
+    private final Map<Long, PeerLink.Listener> peerLinks = new ConcurrentHashMap<>();
 
     // **FITUR BARU: STATE UNTUK FILE SENDING**
-    private volatile long totalBytesSent = 0;
+    // Antrian transfer keluar yang punya kredit (round-robin), semua transfer
+    // aktif per id, dan progress gabungan. Semua field di bawah dijaga lock 'outgoing'.
+    private final ArrayDeque<OutgoingTransfer> outgoing = new ArrayDeque<>();
+    private final Map<Long, OutgoingTransfer> outgoingById = new HashMap<>();
+    private Thread fileSenderThread;
+    // Persiapan yang bisa lama (CRC32C prefix resume, encoder delta, koneksi langsung
+    // FILE_P2P) dikerjakan di sini, bukan di thread pengirim yang melayani semua transfer
+    private final ExecutorService senderPrep = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ClientFilePrepThread");
+        t.setDaemon(true);
+        return t;
+    });
+    private long totalBytesSent = 0;
     private long expectedFileToSendSize = 0;
     // ---------------------------------------------
 
+    // Versi protokol hasil negosiasi CONNECT (0 = belum dibalas server)
+    private volatile int protocolVersion = 0;
+
+    // Versi presence terakhir yang sudah diterapkan ke user list (hanya diakses listener thread)
+    private long presenceVersion = 0;
+
+    // Tabel id sesi <-> nama dari presence (v9). Nama lama tidak dihapus saat
+    // user keluar, supaya pesan yang masih di jalan tetap bisa ditampilkan
+    private volatile int sessionId = 0;
+    private final Map<Integer, String> userNames = new ConcurrentHashMap<>();
+    private final Map<String, Integer> userIds = new ConcurrentHashMap<>();
+
     // --- Konstruktor & Koneksi ---
 
     public ClientService(ClientMain gui) {
@@ -47,16 +93,19 @@ public class ClientService {
      */
     public boolean connect(String host, int port, String username) {
         try {
+            if (downloadWriter == null) {
+                downloadWriter = new DownloadWriter(gui, this);
+            }
+
             // 1. Inisialisasi Socket dan Streams
             socket = new Socket(host, port);
-            output = new ObjectOutputStream(socket.getOutputStream());
-            // Flush header output-stream sebelum membuat input-stream (Penting!)
-            output.flush();
-            input = new ObjectInputStream(socket.getInputStream());
+            output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
             // 2. Kirim pesan CONNECT sebagai handshake
             Message connectMsg = new Message(MessageType.CONNECT);
             connectMsg.setSender(username);
+            connectMsg.setProtocolVersion(WireFormat.PROTOCOL_VERSION);
             sendMessage(connectMsg);
 
             // 3. Start Listener Thread (Penerima Pesan)
@@ -80,17 +129,40 @@ public class ClientService {
 
     /**
      * Method sinkron untuk mengirim objek Message ke server.
-     * Menggunakan 'synchronized' untuk mencegah masalah penulisan bersamaan.
+     * Memakai writeLock (fair) untuk mencegah masalah penulisan bersamaan.
      */
-    public synchronized void sendMessage(Message message) {
+    public void sendMessage(Message message) {
+        writeLock.lock();
         try {
             if (output != null && socket != null && !socket.isClosed()) {
-                output.writeObject(message);
-                output.flush();
+                compact(message);
+                WireFormat.writeFrame(output, message);
+                flushUnlessQueued();
             }
         } catch (IOException e) {
             SwingUtilities.invokeLater(() -> gui.logMessage("ERROR: Gagal mengirim pesan. Koneksi mungkin terputus."));
             disconnect();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Pengirim diisi server dari sesi kita, jadi namanya tidak perlu dikirim;
+     * tujuan dikirim sebagai id jika sudah dikenal (nama sebagai cadangan).
+     */
+    private void compact(Message message) {
+        if (message.getType() == MessageType.CONNECT) {
+            return;
+        }
+        message.setSender(null);
+        String recipient = message.getRecipient();
+        if (recipient != null) {
+            Integer id = "ALL".equalsIgnoreCase(recipient) ? Integer.valueOf(Message.ALL_ID) : userIds.get(recipient);
+            if (id != null) {
+                message.setRecipientId(id);
+                message.setRecipient(null);
+            }
         }
     }
 
@@ -132,7 +204,15 @@ public class ClientService {
 
     /**
      * Mengirim file dengan memecahnya menjadi potongan-potongan (chunks).
-     * HARUS dijalankan di thread terpisah.
+     * Aman dipanggil dari EDT: file hanya didaftarkan ke antrian transfer keluar.
+     *
+     * Transfer baru menunggu FILE_CREDIT dari penerima (dikirim saat penerima
+     * menerima file), dan tidak pernah maju melewati kredit itu. Transfer yang
+     * punya kredit dilayani satu thread pengirim secara round-robin (satu chunk
+     * per giliran, ukuran chunk sama untuk semua transfer), jadi file kecil tidak
+     * menunggu file besar selesai. Chunk dibaca lewat FileChannel ke buffer
+     * pinjaman dari pool; ukurannya menyesuaikan throughput (8 KB - 1 MB) dan
+     * update progress ke EDT dibatasi.
      */
     public void sendFile(String recipient, File file) {
         if (!file.exists() || !file.isFile()) {
@@ -140,65 +220,762 @@ public class ClientService {
             return;
         }
 
-        new Thread(() -> {
-            // Inisialisasi state pengiriman
-            this.expectedFileToSendSize = file.length();
-            this.totalBytesSent = 0;
+        OutgoingTransfer transfer;
+        try {
+            transfer = new OutgoingTransfer(nextTransferId(), recipient, file);
+        } catch (IOException e) {
+            gui.logMessage("ERROR saat mengirim file: " + e.getMessage());
+            return;
+        }
 
-            try (FileInputStream fis = new FileInputStream(file)) {
+        // Daftarkan dulu supaya kredit/penolakan yang datang cepat tidak hilang
+        synchronized (outgoing) {
+            outgoingById.put(transfer.id, transfer);
+            expectedFileToSendSize += transfer.size;
+            if (fileSenderThread == null) {
+                fileSenderThread = new Thread(this::fileSenderLoop, "ClientFileSenderThread");
+                fileSenderThread.setDaemon(true);
+                fileSenderThread.start();
+            }
+        }
 
-                // 1. Kirim Pesan Permintaan File (Header: FILE_REQUEST)
-                Message requestMsg = new Message(MessageType.FILE_REQUEST);
-                requestMsg.setRecipient(recipient);
-                requestMsg.setContent(file.getName());
-                requestMsg.setFileSize(file.length());
-                requestMsg.setSender(gui.getUsername());
-                sendMessage(requestMsg);
+        gui.logMessage(String.format("⏳ Mengirim file '%s' (%d bytes) ke %s...",
+                file.getName(), transfer.size, recipient));
 
-                gui.logMessage(String.format("⏳ Mengirim file '%s' (%d bytes) ke %s...",
-                        file.getName(), file.length(), recipient));
+        // Hash dihitung di luar EDT (membaca seluruh file), baru FILE_REQUEST dikirim
+        Thread requestThread = new Thread(() -> sendFileRequest(transfer), "ClientFileHashThread");
+        requestThread.setDaemon(true);
+        requestThread.start();
+    }
 
-                byte[] buffer = new byte[8192]; // Ukuran buffer 8KB
-                int bytesRead;
+    /**
+     * 1. Kirim Pesan Permintaan File (Header: FILE_REQUEST) beserta SHA-256 isinya,
+     * supaya server bisa melewati upload jika sudah punya file yang sama.
+     */
+    private void sendFileRequest(OutgoingTransfer transfer) {
+        // Semua versi yang diterima server (>= MIN_PROTOCOL_VERSION) mengenal contentHash
+        byte[] hash = null;
+        try {
+            hash = sha256(transfer.channel, transfer.size);
+        } catch (IOException e) {
+            synchronized (outgoing) {
+                if (transfer.cancelled) {
+                    return; // dibatalkan/putus saat hashing
+                }
+            }
+        }
 
-                // 2. Kirim Potongan-potongan Data (Chunks: FILE_CHUNK)
-                while ((bytesRead = fis.read(buffer)) > 0) {
-                    Message chunkMsg = new Message(MessageType.FILE_CHUNK);
-                    chunkMsg.setRecipient(recipient);
+        Message requestMsg = new Message(MessageType.FILE_REQUEST);
+        requestMsg.setRecipient(transfer.recipient);
+        requestMsg.setContent(transfer.fileName);
+        requestMsg.setFileSize(transfer.size);
+        requestMsg.setTransferId(transfer.id);
+        requestMsg.setContentHash(hash);
+        requestMsg.setSender(gui.getUsername());
+        sendMessage(requestMsg);
+    }
 
-                    byte[] data = new byte[bytesRead];
-                    System.arraycopy(buffer, 0, data, 0, bytesRead);
-                    chunkMsg.setFileChunk(data);
+    private static byte[] sha256(FileChannel channel, long size) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(256 * 1024);
+        long position = 0;
+        while (position < size) {
+            buf.clear();
+            int n = channel.read(buf, position); // baca posisional, tidak mengganggu thread pengirim
+            if (n < 0) {
+                break;
+            }
+            buf.flip();
+            digest.update(buf);
+            position += n;
+        }
+        return digest.digest();
+    }
 
-                    sendMessage(chunkMsg);
+    /**
+     * FILE_CACHED: server sudah punya isi file ini dan melayani penerima sendiri.
+     */
+    private void onOutgoingCached(long transferId) {
+        OutgoingTransfer transfer;
+        synchronized (outgoing) {
+            transfer = outgoingById.remove(transferId);
+            if (transfer == null) {
+                return;
+            }
+            transfer.cancelled = true;
+            outgoing.remove(transfer);
+            forgetProgress(transfer);
+            if (!transfer.inFlight) {
+                transfer.close();
+            }
+        }
+        SwingUtilities.invokeLater(() -> gui.logMessage("✅ Pengiriman file '" + transfer.fileName
+                + "' selesai (sudah ada di server, upload dilewati)."));
+    }
 
-                    // **FITUR PROGRESS BAR: UPDATE PENGIRIMAN**
-                    totalBytesSent += bytesRead;
-                    int percentage = (int) ((totalBytesSent * 100) / expectedFileToSendSize);
-                    String statusText = String.format("%d%% Sent", percentage);
+    /**
+     * FILE_PROOF dari server: isi file ini sudah ada di cache server, buktikan kita
+     * memegangnya. Hanya beberapa potongan kecil yang dibaca (posisional), jadi
+     * cukup di thread pembaca. Gagal membaca: jawaban kosong, server upload biasa.
+     */
+    private void onProofRequested(long transferId, byte[] nonce) {
+        OutgoingTransfer transfer;
+        synchronized (outgoing) {
+            transfer = outgoingById.get(transferId);
+            if (transfer == null || transfer.cancelled) {
+                return;
+            }
+        }
+        byte[] proof;
+        try {
+            proof = ContentProof.compute(transfer.channel, transfer.size, nonce);
+        } catch (IOException e) {
+            proof = new byte[0];
+        }
+
+        Message reply = new Message(MessageType.FILE_PROOF);
+        reply.setTransferId(transferId);
+        reply.setContentHash(proof);
+        reply.setSender(gui.getUsername());
+        sendMessage(reply);
+    }
+
+    /**
+     * FILE_CREDIT: penerima mengizinkan transfer maju sampai offset ini.
+     */
+    private void onFileCredit(long transferId, long offset) {
+        synchronized (outgoing) {
+            OutgoingTransfer transfer = outgoingById.get(transferId);
+            if (transfer == null || offset <= transfer.credit) {
+                return;
+            }
+            transfer.credit = offset;
+            if (!transfer.scheduled) {
+                transfer.scheduled = true;
+                outgoing.addLast(transfer);
+                outgoing.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * FILE_RESUME dari penerima: dia sudah punya offset byte pertama file ini.
+     * Pengecekan checksum dilakukan thread persiapan (bisa membaca banyak data).
+     */
+    private void onResumeRequested(long transferId, long offset, long checksum) {
+        synchronized (outgoing) {
+            OutgoingTransfer transfer = outgoingById.get(transferId);
+            if (transfer == null || transfer.sent > 0) {
+                return;
+            }
+            transfer.resumeOffset = offset;
+            transfer.resumeChecksum = checksum;
+            transfer.resumePending = true;
+            if (!transfer.scheduled) {
+                transfer.scheduled = true;
+                outgoing.addLast(transfer);
+                outgoing.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * FILE_DELTA dari penerima: dia punya versi lama file ini. Encoder dibangun
+     * thread persiapan sebelum chunk pertama.
+     */
+    private void onDeltaRequested(long transferId, int blockSize, byte[] signatures) {
+        synchronized (outgoing) {
+            OutgoingTransfer transfer = outgoingById.get(transferId);
+            if (transfer == null || transfer.sent > 0 || signatures == null) {
+                return;
+            }
+            transfer.deltaBlockSize = blockSize;
+            transfer.deltaSignatures = signatures;
+            transfer.deltaPending = true;
+            if (!transfer.scheduled) {
+                transfer.scheduled = true;
+                outgoing.addLast(transfer);
+                outgoing.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Setujui delta (balas blockSize yang sama) atau tolak (balas 0, kirim utuh).
+     * Jawaban dikirim sebelum chunk apa pun.
+     */
+    private void handleDelta(OutgoingTransfer transfer) {
+        DeltaSync.Encoder encoder = null;
+        try {
+            encoder = new DeltaSync.Encoder(transfer.channel, transfer.size, transfer.deltaBlockSize,
+                    transfer.deltaSignatures);
+        } catch (IOException e) {
+            // Tanda tangan rusak: kirim utuh
+        }
+
+        Message reply = new Message(MessageType.FILE_DELTA);
+        reply.setRecipient(transfer.recipient);
+        reply.setTransferId(transfer.id);
+        reply.setFileSize(encoder != null ? transfer.deltaBlockSize : 0);
+        reply.setSender(gui.getUsername());
+        sendMessage(reply);
+
+        synchronized (outgoing) {
+            transfer.deltaPending = false;
+            transfer.deltaSignatures = null;
+            transfer.delta = encoder;
+        }
+    }
 
-                    // Panggil method GUI di Event Dispatch Thread
+    /**
+     * FILE_P2P dari penerima (diisi alamatnya oleh server): coba koneksi langsung
+     * di thread persiapan sebelum chunk pertama.
+     */
+    private void onDirectOffered(long transferId, String host, int port, long token) {
+        synchronized (outgoing) {
+            OutgoingTransfer transfer = outgoingById.get(transferId);
+            if (transfer == null || host == null) {
+                return;
+            }
+            transfer.p2pHost = host;
+            transfer.p2pPort = port;
+            transfer.p2pToken = token;
+            transfer.p2pPending = true;
+            if (!transfer.scheduled) {
+                transfer.scheduled = true;
+                outgoing.addLast(transfer);
+                outgoing.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Hubungi penerima langsung; balas 1 jika tersambung (chunk lewat koneksi
+     * itu), 0 jika tidak (chunk tetap di-relay server). Kredit tetap lewat server.
+     */
+    private void handleDirect(OutgoingTransfer transfer) {
+        PeerLink.Sender direct = PeerLink.ENABLED
+                ? PeerLink.Sender.connect(transfer.p2pHost, transfer.p2pPort, transfer.id, transfer.p2pToken)
+                : null;
+
+        Message reply = new Message(MessageType.FILE_P2P);
+        reply.setRecipient(transfer.recipient);
+        reply.setTransferId(transfer.id);
+        reply.setFileSize(direct != null ? 1 : 0);
+        reply.setSender(gui.getUsername());
+        sendMessage(reply);
+
+        synchronized (outgoing) {
+            transfer.p2pPending = false;
+            transfer.direct = direct;
+        }
+        if (direct != null) {
+            SwingUtilities.invokeLater(() -> gui.logMessage("Mengirim '" + transfer.fileName
+                    + "' lewat koneksi langsung..."));
+        }
+    }
+
+    /**
+     * Cocokkan CRC32C prefix file kita dengan milik penerima. Jika sama, lompat
+     * ke offset itu; jika tidak, mulai dari 0. Jawaban dikirim sebelum chunk apa pun.
+     */
+    private void handleResume(OutgoingTransfer transfer) throws IOException {
+        long offset = transfer.resumeOffset;
+        boolean match = offset > 0 && offset <= transfer.size
+                && DownloadWriter.crc32c(transfer.channel, offset) == transfer.resumeChecksum;
+        long start = match ? offset : 0;
+        transfer.channel.position(start);
+
+        Message reply = new Message(MessageType.FILE_RESUME);
+        reply.setRecipient(transfer.recipient);
+        reply.setTransferId(transfer.id);
+        reply.setFileSize(start);
+        reply.setSender(gui.getUsername());
+        sendMessage(reply);
+
+        synchronized (outgoing) {
+            transfer.resumePending = false;
+            transfer.sent = start;
+            totalBytesSent += start;
+        }
+        if (match) {
+            SwingUtilities.invokeLater(() -> gui.logMessage(String.format("Melanjutkan '%s' dari %d KB...",
+                    transfer.fileName, start / 1024)));
+        }
+    }
+
+    /**
+     * FILE_REJECT untuk transfer keluar: berhenti saat itu juga.
+     */
+    private void onOutgoingRejected(long transferId, String reason) {
+        OutgoingTransfer transfer;
+        synchronized (outgoing) {
+            transfer = outgoingById.remove(transferId);
+            if (transfer == null) {
+                return;
+            }
+            transfer.cancelled = true;
+            outgoing.remove(transfer);
+            forgetProgress(transfer);
+            if (!transfer.inFlight) {
+                transfer.close(); // yang sedang dibaca ditutup oleh thread pengirim
+            }
+        }
+        SwingUtilities.invokeLater(() -> gui.logMessage("❌ File '" + transfer.fileName + "' ditolak"
+                + (reason != null ? ": " + reason : ".")));
+    }
+
+    /**
+     * Thread pengirim: ambil transfer terdepan yang punya kredit, kirim satu
+     * chunk (2. FILE_CHUNK), lalu taruh lagi di belakang antrian, parkir sampai
+     * kredit berikutnya, atau tutup dengan FILE_COMPLETE (3.).
+     */
+    private void fileSenderLoop() {
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer();
+        ProgressThrottle progress = new ProgressThrottle();
+        ByteBuffer buffer = CHUNK_POOL.acquire();
+        try {
+            while (true) {
+                OutgoingTransfer transfer;
+                synchronized (outgoing) {
+                    while (outgoing.isEmpty()) {
+                        outgoing.wait();
+                    }
+                    transfer = outgoing.pollFirst();
+                    transfer.inFlight = true;
+                }
+
+                if (transfer.resumePending || transfer.deltaPending || transfer.p2pPending) {
+                    // Tetap inFlight (channel-nya sedang dibaca); masuk antrian lagi setelah siap
+                    senderPrep.execute(() -> prepareOutgoing(transfer));
+                    continue;
+                }
+
+                int bytesRead = 0;
+                boolean done = false;
+                try {
+                    long allowed;
+                    synchronized (outgoing) {
+                        allowed = transfer.credit - transfer.sent;
+                        // Selesai hanya setelah penerima memberi kredit, supaya
+                        // FILE_COMPLETE tidak mendahului jawaban FILE_RESUME/FILE_DELTA/FILE_P2P
+                        done = transfer.credit > 0 && transfer.fullySent();
+                    }
+                    if (!done && allowed > 0) {
+                        buffer.clear().limit((int) Math.min(sizer.chunkSize(), allowed));
+                        if (transfer.delta != null) {
+                            // Instruksi delta; 0 jika instruksi berikutnya belum muat di kredit
+                            bytesRead = transfer.delta.next(buffer);
+                        } else {
+                            bytesRead = transfer.channel.read(buffer);
+                            done = bytesRead < 0;
+                        }
+                    }
+                    if (bytesRead > 0) {
+                        long start = System.nanoTime();
+                        if (transfer.direct != null) {
+                            transfer.direct.writeChunk(transfer.id, buffer.array(), bytesRead);
+                        } else {
+                            sendFileChunk(transfer.id, buffer.array(), bytesRead);
+                        }
+                        sizer.record(bytesRead, System.nanoTime() - start);
+                    }
+                } catch (IOException e) {
+                    if (!transfer.cancelled) {
+                        abortOutgoing(transfer, e);
+                    } else {
+                        // Ditolak saat chunk ini dikirim: yang menolak melewatkan close() karena inFlight
+                        transfer.close();
+                    }
+                    continue;
+                } finally {
+                    synchronized (outgoing) {
+                        transfer.inFlight = false;
+                    }
+                }
+
+                int percentage;
+                boolean idle;
+                synchronized (outgoing) {
+                    if (transfer.cancelled) {
+                        transfer.close(); // ditolak saat chunk ini sedang dikirim
+                        continue;
+                    }
+                    transfer.sent += Math.max(bytesRead, 0);
+                    totalBytesSent += Math.max(bytesRead, 0);
+                    done = done || (transfer.credit > 0 && transfer.fullySent());
+                    if (done) {
+                        outgoingById.remove(transfer.id);
+                    } else if (transfer.credit > transfer.sent && bytesRead != 0) {
+                        outgoing.addLast(transfer);
+                    } else {
+                        transfer.scheduled = false; // parkir sampai FILE_CREDIT berikutnya
+                    }
+                    idle = done && outgoingById.isEmpty();
+                    percentage = expectedFileToSendSize > 0
+                            ? (int) ((totalBytesSent * 100) / expectedFileToSendSize)
+                            : 100;
+                }
+
+                if (done) {
+                    finishOutgoing(transfer);
+                }
+
+                // **FITUR PROGRESS BAR: UPDATE PENGIRIMAN** (gabungan semua transfer, dibatasi)
+                if (idle) {
+                    resetSendProgress();
+                    SwingUtilities.invokeLater(() -> gui.updateFileProgress(false, 100, ""));
+                } else if (progress.shouldUpdate(percentage)) {
+                    String statusText = String.format("%d%% Sent", percentage);
                     SwingUtilities.invokeLater(() -> gui.updateFileProgress(true, percentage, statusText));
                 }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            CHUNK_POOL.release(buffer);
+        }
+    }
+
+    /**
+     * Jawab FILE_RESUME/FILE_DELTA/FILE_P2P di thread persiapan, lalu kembalikan transfer
+     * ke antrian thread pengirim. Jawaban tetap terkirim sebelum chunk apa pun.
+     */
+    private void prepareOutgoing(OutgoingTransfer transfer) {
+        try {
+            if (transfer.resumePending) {
+                handleResume(transfer);
+            }
+            if (transfer.deltaPending) {
+                handleDelta(transfer);
+            }
+            if (transfer.p2pPending) {
+                handleDirect(transfer);
+            }
+        } catch (IOException e) {
+            if (!transfer.cancelled) {
+                abortOutgoing(transfer, e);
+            } else {
+                transfer.close();
+            }
+            return;
+        }
+        synchronized (outgoing) {
+            transfer.inFlight = false;
+            if (transfer.cancelled) {
+                transfer.close(); // ditolak saat persiapan
+                return;
+            }
+            outgoing.addLast(transfer); // 'scheduled' masih true sejak diambil thread pengirim
+            outgoing.notifyAll();
+        }
+    }
+
+    private void finishOutgoing(OutgoingTransfer transfer) {
+        // 3. Kirim Pesan Konfirmasi Selesai (FILE_COMPLETE)
+        Message finishedMsg = new Message(MessageType.FILE_COMPLETE);
+        finishedMsg.setRecipient(transfer.recipient);
+        finishedMsg.setContent(transfer.fileName);
+        finishedMsg.setTransferId(transfer.id);
+        finishedMsg.setSender(gui.getUsername());
+        if (transfer.direct != null) {
+            // Penerima menutup download dari koneksi langsung (urutannya tepat di belakang chunk
+            // terakhir); salinan ke server hanya menghapus entri transfernya
+            try {
+                transfer.direct.complete(finishedMsg);
+            } catch (IOException e) {
+                // Penerima melihat koneksi putus dan membatalkan lewat FILE_REJECT
+            }
+        }
+        transfer.close();
+        sendMessage(finishedMsg);
+
+        String detail = transfer.delta != null
+                ? String.format(" (delta: %d KB dikirim untuk file %d KB)", transfer.sent / 1024, transfer.size / 1024)
+                : "";
+        SwingUtilities.invokeLater(() -> gui.logMessage("✅ Pengiriman file '" + transfer.fileName + "' selesai"
+                + detail + "."));
+    }
+
+    private void abortOutgoing(OutgoingTransfer transfer, IOException e) {
+        transfer.close();
+        synchronized (outgoing) {
+            outgoingById.remove(transfer.id);
+            forgetProgress(transfer);
+        }
+        // Batalkan juga di server, supaya penerima tidak menunggu .part yang tak akan selesai
+        Message cancel = new Message(MessageType.FILE_REJECT);
+        cancel.setTransferId(transfer.id);
+        cancel.setContent("Pengirim gagal membaca file.");
+        cancel.setSender(gui.getUsername());
+        sendMessage(cancel);
+        // Sembunyikan progress bar jika ada error
+        SwingUtilities.invokeLater(() -> gui.updateFileProgress(false, 0, ""));
+        SwingUtilities.invokeLater(() -> gui.logMessage("ERROR saat mengirim file: " + e.getMessage()));
+    }
+
+    // Keluarkan transfer yang batal dari progress gabungan (lock 'outgoing' dipegang)
+    private void forgetProgress(OutgoingTransfer transfer) {
+        expectedFileToSendSize -= transfer.size;
+        totalBytesSent -= transfer.sent;
+        if (outgoingById.isEmpty()) {
+            resetSendProgress();
+            SwingUtilities.invokeLater(() -> gui.updateFileProgress(false, 0, ""));
+        }
+    }
+
+    private void resetSendProgress() {
+        synchronized (outgoing) {
+            totalBytesSent = 0;
+            expectedFileToSendSize = 0;
+        }
+    }
+
+    /**
+     * Koneksi putus: semua transfer keluar dibatalkan.
+     */
+    private void clearOutgoing() {
+        synchronized (outgoing) {
+            for (OutgoingTransfer transfer : outgoingById.values()) {
+                transfer.cancelled = true;
+                if (!transfer.inFlight) {
+                    transfer.close();
+                }
+            }
+            outgoingById.clear();
+            outgoing.clear();
+            resetSendProgress();
+        }
+    }
+
+    /**
+     * Penerima memberi kredit: pengirim boleh maju sampai offset ini.
+     * Dipanggil DownloadWriter setelah data benar-benar tertulis ke disk.
+     */
+    void sendFileCredit(long transferId, long offset) {
+        Message msg = new Message(MessageType.FILE_CREDIT);
+        msg.setTransferId(transferId);
+        msg.setFileSize(offset);
+        msg.setSender(gui.getUsername());
+        sendMessage(msg);
+    }
+
+    /**
+     * Minta pengirim melanjutkan dari offset .part kita (checksum = CRC32C isinya).
+     */
+    void sendFileResume(long transferId, long offset, long checksum) {
+        Message msg = new Message(MessageType.FILE_RESUME);
+        msg.setTransferId(transferId);
+        msg.setFileSize(offset);
+        msg.setChecksum(checksum);
+        msg.setSender(gui.getUsername());
+        sendMessage(msg);
+    }
+
+    /**
+     * Kirim tanda tangan blok versi lama (fileSize = blockSize) ke pengirim.
+     */
+    void sendFileDelta(long transferId, int blockSize, byte[] signatures) {
+        Message msg = new Message(MessageType.FILE_DELTA);
+        msg.setTransferId(transferId);
+        msg.setFileSize(blockSize);
+        msg.setFileChunk(signatures);
+        msg.setSender(gui.getUsername());
+        sendMessage(msg);
+    }
+
+    /**
+     * Tawarkan koneksi langsung: port lokal + token; server mengisi alamat IP kita.
+     */
+    void sendFileP2p(long transferId, int port, long token) {
+        Message msg = new Message(MessageType.FILE_P2P);
+        msg.setTransferId(transferId);
+        msg.setFileSize(port);
+        msg.setChecksum(token);
+        msg.setSender(gui.getUsername());
+        sendMessage(msg);
+    }
+
+    /**
+     * Tolak/batalkan transfer yang sedang kita terima; server meneruskannya ke pengirim.
+     */
+    void sendFileReject(long transferId, String reason) {
+        Message msg = new Message(MessageType.FILE_REJECT);
+        msg.setTransferId(transferId);
+        msg.setContent(reason);
+        msg.setSender(gui.getUsername());
+        sendMessage(msg);
+    }
+
+    /**
+     * Tulis satu FILE_CHUNK langsung dari buffer (lock sama dengan sendMessage).
+     * Karena lock-nya fair, chat yang sudah menunggu selalu masuk sebelum chunk
+     * berikutnya; chunk sendiri tetap dapat giliran, jadi transfer tidak mati.
+     */
+    private void sendFileChunk(long transferId, byte[] data, int length) throws IOException {
+        writeLock.lock();
+        try {
+            if (output == null || socket == null || socket.isClosed()) {
+                throw new IOException("Koneksi terputus");
+            }
+            WireFormat.writeFileChunk(output, transferId, data, 0, length);
+            flushUnlessQueued();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Flush kecuali ada thread lain yang sudah antre di writeLock: thread
+     * terakhir yang flush, jadi pesan beruntun (kredit, chat, chunk) keluar
+     * dalam satu write. Pesan tunggal tetap langsung di-flush.
+     */
+    private void flushUnlessQueued() throws IOException {
+        if (!writeLock.hasQueuedThreads()) {
+            output.flush();
+        }
+    }
+
+    // ID acak (bukan urutan) supaya tidak bentrok dengan transfer klien lain di server
+    private static long nextTransferId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+        } while (id == 0);
+        return id;
+    }
+
+    // --- Helper pengiriman file ---
+
+    /**
+     * Satu file yang sedang dikirim.
+     */
+    private static class OutgoingTransfer {
+        final long id;
+        final String recipient;
+        final String fileName;
+        final long size;
+        final FileChannel channel;
+        long sent;
+        long credit;        // offset yang sudah diizinkan penerima (FILE_CREDIT)
+        boolean scheduled;  // ada di antrian 'outgoing' atau sedang dilayani
+        boolean inFlight;   // sedang dibaca/dikirim thread pengirim
+        boolean cancelled;  // ditolak penerima / koneksi putus
+        boolean resumePending; // FILE_RESUME dari penerima belum dijawab
+        long resumeOffset;
+        long resumeChecksum;
+        boolean deltaPending;  // FILE_DELTA dari penerima belum dijawab
+        int deltaBlockSize;
+        byte[] deltaSignatures;
+        DeltaSync.Encoder delta; // non-null: yang dikirim instruksi delta, 'sent' = byte instruksi
+        boolean p2pPending;    // FILE_P2P dari penerima belum dijawab
+        String p2pHost;
+        int p2pPort;
+        long p2pToken;
+        PeerLink.Sender direct; // non-null: chunk dikirim lewat koneksi langsung
+
+        OutgoingTransfer(long id, String recipient, File file) throws IOException {
+            this.id = id;
+            this.recipient = recipient;
+            this.fileName = file.getName();
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.size = channel.size();
+        }
+
+        boolean fullySent() {
+            return delta != null ? delta.isFinished() : sent >= size;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            if (direct != null) {
+                direct.close();
+            }
+        }
+    }
+
+    // Buffer chunk dipakai ulang antar transfer (ukuran maksimum chunk)
+    private static final BufferPool CHUNK_POOL = new BufferPool(AdaptiveChunkSizer.MAX_CHUNK, 4);
+
+    /**
+     * Pool sederhana untuk buffer heap berukuran tetap.
+     */
+    private static class BufferPool {
+        private final int bufferSize;
+        private final ArrayBlockingQueue<ByteBuffer> free;
 
-                // **FITUR PROGRESS BAR: Selesai Pengiriman**
-                SwingUtilities.invokeLater(() -> gui.updateFileProgress(false, 100, ""));
+        BufferPool(int bufferSize, int maxPooled) {
+            this.bufferSize = bufferSize;
+            this.free = new ArrayBlockingQueue<>(maxPooled);
+        }
+
+        ByteBuffer acquire() {
+            ByteBuffer buffer = free.poll();
+            return buffer != null ? buffer : ByteBuffer.allocate(bufferSize);
+        }
+
+        void release(ByteBuffer buffer) {
+            buffer.clear();
+            free.offer(buffer); // Pool penuh: biarkan GC mengambilnya
+        }
+    }
+
+    /**
+     * Menyesuaikan ukuran chunk dengan throughput yang terukur: target tiap
+     * chunk butuh sekitar TARGET_MS untuk masuk ke socket. Link cepat dapat
+     * chunk besar (overhead per frame kecil), link lambat dapat chunk kecil
+     * (pesan lain tidak lama tertahan di belakangnya).
+     */
+    private static class AdaptiveChunkSizer {
+        static final int MIN_CHUNK = 8 * 1024;
+        static final int MAX_CHUNK = 1024 * 1024;
+        private static final long TARGET_MS = 20;
+
+        private int chunkSize = MIN_CHUNK;
+        private double bytesPerMs = 0; // rata-rata bergerak (EWMA)
+
+        int chunkSize() {
+            return chunkSize;
+        }
 
-                // 3. Kirim Pesan Konfirmasi Selesai (FILE_COMPLETE)
-                Message finishedMsg = new Message(MessageType.FILE_COMPLETE);
-                finishedMsg.setRecipient(recipient);
-                finishedMsg.setContent(file.getName());
-                finishedMsg.setSender(gui.getUsername());
-                sendMessage(finishedMsg);
+        void record(int bytes, long elapsedNanos) {
+            double ms = Math.max(elapsedNanos / 1_000_000.0, 0.05);
+            double sample = bytes / ms;
+            bytesPerMs = bytesPerMs == 0 ? sample : bytesPerMs * 0.7 + sample * 0.3;
 
-                gui.logMessage("✅ Pengiriman file selesai.");
+            // Naik maksimal 2x per langkah supaya tidak melonjak karena satu sampel
+            long ideal = (long) (bytesPerMs * TARGET_MS);
+            long next = Math.min(ideal, (long) chunkSize * 2);
+            chunkSize = (int) Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, next));
+        }
+    }
 
-            } catch (Exception e) {
-                // Sembunyikan progress bar jika ada error
-                SwingUtilities.invokeLater(() -> gui.updateFileProgress(false, 0, ""));
-                SwingUtilities.invokeLater(() -> gui.logMessage("ERROR saat mengirim file: " + e.getMessage()));
+    /**
+     * Batasi update progress ke EDT: hanya saat persentase berubah dan
+     * paling sering sekali per PROGRESS_INTERVAL_MS.
+     */
+    private static class ProgressThrottle {
+        private static final long PROGRESS_INTERVAL_MS = 100;
+        private int lastPercentage = -1;
+        private long lastUpdateAt = 0;
+
+        boolean shouldUpdate(int percentage) {
+            long now = System.currentTimeMillis();
+            if (percentage == lastPercentage || now - lastUpdateAt < PROGRESS_INTERVAL_MS) {
+                return false;
             }
-        }, "ClientFileSenderThread").start();
+            lastPercentage = percentage;
+            lastUpdateAt = now;
+            return true;
+        }
     }
 
     // --- Penerima Pesan (ServerListener Thread) ---
@@ -207,12 +984,9 @@ public class ClientService {
         @Override
         public void run() {
             try {
-                Object receivedObject;
-                while (!socket.isClosed() && (receivedObject = input.readObject()) != null) {
-                    if (receivedObject instanceof Message) {
-                        Message receivedMsg = (Message) receivedObject;
-                        handleMessage(receivedMsg);
-                    }
+                while (!socket.isClosed()) {
+                    Message receivedMsg = WireFormat.readFrame(input);
+                    handleMessage(receivedMsg);
                 }
             } catch (SocketException e) {
                 if (!"Socket closed".equalsIgnoreCase(e.getMessage())) {
@@ -220,8 +994,8 @@ public class ClientService {
                 }
             } catch (IOException e) {
                 SwingUtilities.invokeLater(() -> gui.connectionLost());
-            } catch (ClassNotFoundException e) {
-                SwingUtilities.invokeLater(() -> gui.logMessage("ERROR: Objek tak dikenal diterima."));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             } finally {
                 disconnect();
             }
@@ -231,10 +1005,11 @@ public class ClientService {
     /**
      * Memproses objek Message yang diterima dari server.
      */
-    private void handleMessage(Message msg) {
-        // Logika file writing (I/O intensif) harus dijalankan di thread terpisah.
+    private void handleMessage(Message msg) throws InterruptedException {
+        // Logika file writing (I/O intensif) dijalankan di DownloadWriter.
         // Logika GUI (perintah Swing) harus dijalankan di EDT (menggunakan
         // invokeLater).
+        resolveNames(msg);
 
         switch (msg.getType()) {
             case BROADCAST_CHAT:
@@ -266,9 +1041,24 @@ public class ClientService {
             // -----------------------------------------
 
             case USER_LIST_UPDATE:
-                if (msg.getContent() != null && !msg.getContent().isEmpty()) {
-                    SwingUtilities.invokeLater(() -> gui.updateUserList(msg.getContent().split(",")));
+                // Snapshot lengkap: hanya saat CONNECT atau saat kita minta ulang
+                this.presenceVersion = msg.getPresenceVersion();
+                String list = msg.getContent() != null ? msg.getContent() : "";
+                String[] entries = list.isEmpty() ? new String[0] : list.split(",");
+                userIds.clear();
+                for (int i = 0; i < entries.length; i++) {
+                    entries[i] = learnEntry(entries[i]);
                 }
+                SwingUtilities.invokeLater(() -> gui.updateUserList(entries));
+                break;
+
+            case USER_JOINED:
+            case USER_LEFT:
+                applyPresenceDelta(msg);
+                break;
+            case PING:
+                // Heartbeat server: balas supaya koneksi tidak dianggap mati
+                sendMessage(new Message(MessageType.PONG));
                 break;
             case BUZZ:
                 SwingUtilities.invokeLater(() -> gui.triggerBuzz(msg.getSender()));
@@ -286,122 +1076,126 @@ public class ClientService {
                 String fileName = msg.getContent();
                 long size = msg.getFileSize();
 
-                this.receivingFileName = fileName;
-                this.expectedFileSize = size;
-                this.totalBytesReceived = 0;
+                // Hanya antrikan pembukaan file; disk disentuh oleh DownloadWriter
+                long transferId = msg.getTransferId();
+                DownloadWriter.Download download = downloadWriter.begin(transferId, fileName, size,
+                        msg.getContentHash());
+                DownloadWriter.Download previous = downloads.put(transferId, download);
+                if (previous != null) {
+                    downloadWriter.abort(previous);
+                }
 
-                try {
-                    File downloadDir = new File("downloads");
-                    if (!downloadDir.exists())
-                        downloadDir.mkdir();
-
-                    // Simpan sebagai .part dulu
-                    File tempFile = new File(downloadDir, fileName + ".part");
-                    currentFileWriter = new FileOutputStream(tempFile);
-
-                    SwingUtilities.invokeLater(() -> {
-                        int choice = javax.swing.JOptionPane.showConfirmDialog(gui,
-                                "Terima file '" + fileName + "' (" + (size / 1024) + " KB) dari " + sender + "?",
-                                "File Masuk",
-                                javax.swing.JOptionPane.YES_NO_OPTION);
-
-                        if (choice != javax.swing.JOptionPane.YES_OPTION) {
-                            // JIKA USER MENOLAK:
-                            try {
-                                if (currentFileWriter != null)
-                                    currentFileWriter.close();
-                                currentFileWriter = null;
-                                tempFile.delete();
-                                gui.logMessage("❌ File ditolak & dihapus.");
-
-                                // --- FITUR PERBAIKAN: HILANGKAN PROGRESS BAR ---
-                                gui.updateFileProgress(false, 0, "");
-                                // -----------------------------------------------
-
-                            } catch (Exception e) {
-                            }
-                        } else {
-                            gui.logMessage("Menerima file...");
+                SwingUtilities.invokeLater(() -> {
+                    int choice = javax.swing.JOptionPane.showConfirmDialog(gui,
+                            "Terima file '" + fileName + "' (" + (size / 1024) + " KB) dari " + sender + "?",
+                            "File Masuk",
+                            javax.swing.JOptionPane.YES_NO_OPTION);
+
+                    if (!downloads.containsKey(transferId)) {
+                        return; // dibatalkan pengirim selagi dialog terbuka
+                    }
+                    if (choice != javax.swing.JOptionPane.YES_OPTION) {
+                        // JIKA USER MENOLAK: pengirim diberi tahu, tidak ada chunk yang terbuang
+                        downloads.remove(transferId, download);
+                        downloadWriter.cancel(download);
+                        sendFileReject(transferId, "Ditolak oleh " + gui.getUsername());
+                        gui.logMessage("❌ File ditolak & dihapus.");
+
+                        // --- FITUR PERBAIKAN: HILANGKAN PROGRESS BAR ---
+                        gui.updateFileProgress(false, 0, "");
+                        // -----------------------------------------------
+                    } else {
+                        // Kredit awal dikirim DownloadWriter setelah .part siap (dan setelah
+                        // pengirim menjawab tawaran koneksi langsung, jika ada)
+                        PeerLink.Listener link = offerDirect(download);
+                        downloadWriter.accept(download, link != null);
+                        if (link != null) {
+                            sendFileP2p(transferId, link.port(), link.token);
                         }
-                    });
+                        gui.logMessage("Menerima file...");
+                    }
+                });
+                break;
 
-                } catch (IOException e) {
-                    gui.logMessage("ERROR Init File: " + e.getMessage());
+            case FILE_CREDIT:
+                onFileCredit(msg.getTransferId(), msg.getFileSize());
+                break;
+
+            case FILE_CACHED:
+                onOutgoingCached(msg.getTransferId());
+                break;
+
+            case FILE_PROOF:
+                onProofRequested(msg.getTransferId(), msg.getContentHash());
+                break;
+
+            case FILE_DELTA:
+                // Penerima: balasan pengirim (blockSize / 0). Pengirim: tanda tangan versi lama penerima.
+                DownloadWriter.Download patched = downloads.get(msg.getTransferId());
+                if (patched != null) {
+                    downloadWriter.deltaFrom(patched, (int) msg.getFileSize());
+                } else {
+                    onDeltaRequested(msg.getTransferId(), (int) msg.getFileSize(), msg.getFileChunk());
+                }
+                break;
+
+            case FILE_P2P:
+                // Penerima: hasil koneksi langsung (1/0). Pengirim: alamat + token penerima.
+                DownloadWriter.Download linked = downloads.get(msg.getTransferId());
+                if (linked != null) {
+                    onDirectSettled(linked, msg.getFileSize() == 1);
+                } else {
+                    onDirectOffered(msg.getTransferId(), msg.getContent(), (int) msg.getFileSize(),
+                            msg.getChecksum());
+                }
+                break;
+
+            case FILE_RESUME:
+                // Penerima: balasan offset dari pengirim. Pengirim: permintaan resume.
+                DownloadWriter.Download resumed = downloads.get(msg.getTransferId());
+                if (resumed != null) {
+                    downloadWriter.resumeFrom(resumed, msg.getFileSize());
+                } else {
+                    onResumeRequested(msg.getTransferId(), msg.getFileSize(), msg.getChecksum());
+                }
+                break;
+
+            case FILE_REJECT:
+                // Bisa untuk file yang sedang kita kirim (penerima menolak) atau
+                // yang sedang kita terima (pengirim batal/putus)
+                DownloadWriter.Download cancelled = downloads.remove(msg.getTransferId());
+                if (cancelled != null) {
+                    closePeerLink(msg.getTransferId());
+                    downloadWriter.abort(cancelled);
+                    SwingUtilities.invokeLater(() -> gui.logMessage("❌ Transfer '" + cancelled.getFileName()
+                            + "' dibatalkan: " + msg.getContent()));
+                } else {
+                    onOutgoingRejected(msg.getTransferId(), msg.getContent());
                 }
                 break;
 
             case FILE_CHUNK:
-                // --- PERBAIKAN: HAPUS "new Thread", Tulis Langsung (Synchronous) ---
-                if (currentFileWriter != null) {
-                    try {
-                        byte[] chunk = msg.getFileChunk();
-                        if (chunk != null) {
-                            // 1. Tulis Langsung (Dijamin Urut karena satu thread)
-                            currentFileWriter.write(chunk);
-
-                            // 2. Update Counter
-                            totalBytesReceived += chunk.length;
-
-                            // 3. Update Progress Bar (Tetap pakai invokeLater buat GUI)
-                            if (expectedFileSize > 0) {
-                                int percentage = (int) ((totalBytesReceived * 100) / expectedFileSize);
-                                String statusText = String.format("Downloading... %d%%", percentage);
-                                SwingUtilities.invokeLater(() -> gui.updateFileProgress(true, percentage, statusText));
-                            }
-                        }
-                    } catch (IOException e) {
-                        SwingUtilities.invokeLater(() -> {
-                            gui.logMessage("ERROR Write: " + e.getMessage());
-                            gui.updateFileProgress(false, 0, "");
-                        });
-                        try {
-                            if (currentFileWriter != null)
-                                currentFileWriter.close();
-                        } catch (IOException ex) {
-                        }
-                        currentFileWriter = null;
-                    }
+                // Cukup antrikan; penulisan & progress bar diurus DownloadWriter
+                DownloadWriter.Download active = downloads.get(msg.getTransferId());
+                if (active != null && msg.getFileChunk() != null) {
+                    downloadWriter.write(active, msg.getFileChunk());
                 }
                 break;
 
             case FILE_COMPLETE:
-                SwingUtilities.invokeLater(() -> {
-                    // JIKA DITOLAK (currentFileWriter == null), TETAP MATIKAN PROGRESS BAR
-                    if (currentFileWriter == null) {
-                        gui.updateFileProgress(false, 0, "");
-                        return;
-                    }
-
-                    // JIKA DITERIMA
-                    if (currentFileWriter != null) {
-                        try {
-                            currentFileWriter.close();
-
-                            // ... (kode rename file .part yang lama) ...
-                            File downloadDir = new File("downloads");
-                            File tempFile = new File(downloadDir, receivingFileName + ".part");
-                            File finalFile = new File(downloadDir, receivingFileName);
-                            if (finalFile.exists())
-                                finalFile.delete();
-                            tempFile.renameTo(finalFile);
-
-                            gui.logMessage("✅ File tersimpan: " + receivingFileName);
-
-                            // Matikan Progress Bar (Sukses)
-                            gui.updateFileProgress(false, 100, "");
-
-                            currentFileWriter = null;
-                            receivingFileName = null;
-                            expectedFileSize = 0;
-                            totalBytesReceived = 0;
-                        } catch (IOException e) {
-                            gui.logMessage("ERROR Finalizing: " + e.getMessage());
-                        }
-                    }
-                });
+                DownloadWriter.Download finished = downloads.remove(msg.getTransferId());
+                if (finished != null) {
+                    peerLinks.remove(msg.getTransferId());
+                    downloadWriter.finish(finished);
+                } else {
+                    SwingUtilities.invokeLater(() -> gui.updateFileProgress(false, 0, ""));
+                }
                 break;
             // ---------------------------------------------------
             case CONNECT:
+                // Balasan handshake membawa versi protokol yang disepakati server
+                this.protocolVersion = msg.getProtocolVersion();
+                this.sessionId = msg.getRecipientId();
                 SwingUtilities.invokeLater(() -> gui.logMessage("Status: Berhasil terhubung. Menunggu User List..."));
                 break;
             default:
@@ -409,6 +1203,140 @@ public class ClientService {
         }
     }
 
+    // --- Koneksi langsung (sisi penerima) ---
+
+    /**
+     * Buka port untuk koneksi langsung dari pengirim. Null jika dimatikan atau gagal.
+     */
+    private PeerLink.Listener offerDirect(DownloadWriter.Download download) {
+        if (!PeerLink.ENABLED) {
+            return null;
+        }
+        PeerLink.Listener link = PeerLink.Listener.open(download.transferId, peerSink);
+        if (link != null) {
+            peerLinks.put(download.transferId, link);
+        }
+        return link;
+    }
+
+    private void onDirectSettled(DownloadWriter.Download download, boolean direct) {
+        PeerLink.Listener link = peerLinks.get(download.transferId);
+        if (link == null) {
+            return;
+        }
+        if (direct) {
+            link.expectPeer();
+            SwingUtilities.invokeLater(() -> gui.logMessage("Menerima '" + download.getFileName()
+                    + "' lewat koneksi langsung..."));
+        } else {
+            closePeerLink(download.transferId); // chunk datang lewat server seperti biasa
+        }
+        downloadWriter.p2pSettled(download);
+    }
+
+    private void closePeerLink(long transferId) {
+        PeerLink.Listener link = peerLinks.remove(transferId);
+        if (link != null) {
+            link.close();
+        }
+    }
+
+    // Frame dari koneksi langsung masuk ke jalur yang sama dengan frame dari server
+    private final PeerLink.Sink peerSink = new PeerLink.Sink() {
+        @Override
+        public void frame(Message msg) throws InterruptedException {
+            handleMessage(msg);
+        }
+
+        @Override
+        public void lost(long transferId, String reason) {
+            peerLinks.remove(transferId);
+            DownloadWriter.Download download = downloads.remove(transferId);
+            if (download == null) {
+                return;
+            }
+            downloadWriter.abort(download); // .part dibiarkan, bisa dilanjutkan
+            sendFileReject(transferId, reason);
+            SwingUtilities.invokeLater(() -> gui.logMessage("❌ Transfer '" + download.getFileName()
+                    + "' dibatalkan: " + reason));
+        }
+    };
+
+    /**
+     * Terapkan delta presence jika versinya tepat versi berikutnya.
+     * Versi lama diabaikan; kalau ada yang terlewat, minta snapshot ulang.
+     */
+    private void applyPresenceDelta(Message msg) {
+        long version = msg.getPresenceVersion();
+        if (version <= presenceVersion) {
+            return;
+        }
+        if (version != presenceVersion + 1) {
+            Message resync = new Message(MessageType.USER_LIST_UPDATE);
+            resync.setSender(gui.getUsername());
+            sendMessage(resync);
+            return;
+        }
+
+        presenceVersion = version;
+        // Satu delta bisa berisi beberapa user (digabung server per jendela waktu)
+        String[] users = msg.getContent().split(",");
+        boolean joined = msg.getType() == MessageType.USER_JOINED;
+        for (int i = 0; i < users.length; i++) {
+            String entry = users[i];
+            users[i] = learnEntry(entry);
+            if (!joined) {
+                userIds.remove(users[i], Integer.valueOf(entry.substring(0, entry.indexOf(':'))));
+            }
+        }
+        SwingUtilities.invokeLater(() -> {
+            for (String user : users) {
+                if (joined) {
+                    gui.userJoined(user);
+                } else {
+                    gui.userLeft(user);
+                }
+            }
+        });
+    }
+
+    /**
+     * Entri presence "id:nama": catat di tabel id, kembalikan namanya.
+     */
+    private String learnEntry(String entry) {
+        int split = entry.indexOf(':');
+        int id = Integer.parseInt(entry.substring(0, split));
+        String name = entry.substring(split + 1);
+        userNames.put(id, name);
+        userIds.put(name, id);
+        return name;
+    }
+
+    /**
+     * Isi nama pengirim/tujuan dari id sesi, supaya kode GUI tetap bekerja dengan nama.
+     * Nama yang ikut dikirim server (user yang baru join) sekalian dicatat.
+     */
+    private void resolveNames(Message msg) {
+        int senderId = msg.getSenderId();
+        if (senderId != 0) {
+            if (msg.getSender() != null) {
+                userNames.put(senderId, msg.getSender());
+            } else {
+                msg.setSender(userNames.getOrDefault(senderId, "#" + senderId));
+            }
+        }
+        int recipientId = msg.getRecipientId();
+        if (msg.getRecipient() == null && recipientId != 0) {
+            if (recipientId == Message.ALL_ID) {
+                msg.setRecipient("ALL");
+            } else if (recipientId == sessionId) {
+                msg.setRecipient(gui.getUsername());
+            } else {
+                msg.setRecipient(userNames.getOrDefault(recipientId, "#" + recipientId));
+            }
+        }
+    }
+
     // --- Penutupan Koneksi ---
 
     /**
@@ -421,7 +1349,7 @@ public class ClientService {
                 disconnectMsg.setSender(gui.getUsername());
                 try {
                     // Coba kirim sinyal DISCONNECT ke server
-                    output.writeObject(disconnectMsg);
+                    WireFormat.writeFrame(output, disconnectMsg);
                     output.flush();
                 } catch (Exception ignored) {
                 } // Jika gagal kirim, mungkin socket sudah setengah tertutup
@@ -433,14 +1361,16 @@ public class ClientService {
                 if (socket != null)
                     socket.close();
             }
-            // Tutup file stream jika masih terbuka saat disconnect mendadak
-            if (currentFileWriter != null) {
-                try {
-                    currentFileWriter.close();
-                } catch (IOException ignored) {
-                }
-                currentFileWriter = null;
+            // Tutup file download jika masih terbuka saat disconnect mendadak (.part dibiarkan)
+            for (DownloadWriter.Download active : downloads.values()) {
+                downloadWriter.abort(active);
+            }
+            downloads.clear();
+            for (PeerLink.Listener link : peerLinks.values()) {
+                link.close();
             }
+            peerLinks.clear();
+            clearOutgoing();
 
             // **PROGRESS BAR: Sembunyikan saat disconnect**
             SwingUtilities.invokeLater(() -> gui.updateFileProgress(false, 0, ""));
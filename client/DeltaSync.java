@@ -0,0 +1,476 @@
+package client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+
+/**
+ * Delta transfer gaya rsync untuk file yang dikirim ulang setelah diubah sedikit.
+ *
+ * Penerima yang sudah punya versi lama di downloads/ mengirim tanda tangan per
+ * blok (checksum bergulir 32-bit + MD5). Pengirim menggeser jendela sebesar satu
+ * blok di file barunya; blok yang cocok dikirim sebagai instruksi COPY, sisanya
+ * sebagai LITERAL. Penerima menyusun file baru dari versi lama + instruksi itu.
+ *
+ * Aliran instruksi dikirim lewat FILE_CHUNK biasa (flow control tetap berlaku).
+ * Setiap chunk berisi instruksi utuh, jadi bisa diterapkan tanpa menunggu chunk berikutnya:
+ *
+ * <pre>
+ * u8 1, varlong blokAwal, varint jumlahBlok   COPY  (blok berurutan dari file lama)
+ * u8 2, varint panjang, bytes                 LITERAL
+ * </pre>
+ */
+final class DeltaSync {
+
+    private static final int OP_COPY = 1;
+    private static final int OP_LITERAL = 2;
+
+    // Satu entry tanda tangan: checksum bergulir (4 byte) + MD5 (16 byte)
+    private static final int STRONG_LENGTH = 16;
+    static final int SIGNATURE_LENGTH = 4 + STRONG_LENGTH;
+
+    private static final int MIN_BLOCK = 2 * 1024;
+    private static final int MAX_BLOCK = 1024 * 1024;
+    // Tanda tangan harus muat di satu frame (maks 20 byte x MAX_BLOCKS)
+    private static final long MAX_BLOCKS = 200_000;
+
+    // Literal disalin ke antrian instruksi per potongan sebesar ini
+    private static final int LITERAL_SLICE = 64 * 1024;
+
+    private DeltaSync() {
+    }
+
+    /**
+     * Ukuran blok ~ akar ukuran file (seperti rsync), dibulatkan ke KB.
+     */
+    static int blockSizeFor(long basisLength) {
+        long block = ((long) Math.sqrt((double) basisLength) + 1023) / 1024 * 1024;
+        block = Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, block));
+        while (basisLength / block > MAX_BLOCKS) {
+            block *= 2;
+        }
+        return (int) block;
+    }
+
+    /**
+     * Tanda tangan semua blok penuh file lama (blok terakhir yang pendek dilewati).
+     */
+    static byte[] signatures(FileChannel basis, long length, int blockSize) throws IOException {
+        int blocks = (int) (length / blockSize);
+        ByteBuffer out = ByteBuffer.allocate(blocks * SIGNATURE_LENGTH);
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+        MessageDigest md5 = md5();
+        for (int i = 0; i < blocks; i++) {
+            block.clear();
+            readFully(basis, block, (long) i * blockSize);
+            out.putInt(weak(block.array(), 0, blockSize));
+            md5.update(block.array(), 0, blockSize);
+            out.put(md5.digest());
+        }
+        return out.array();
+    }
+
+    // --- Checksum ---
+
+    // Checksum bergulir rsync: a = jumlah byte, b = jumlah berbobot (masing-masing 16 bit)
+    static int weak(byte[] data, int off, int len) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < len; i++) {
+            int x = data[off + i] & 0xFF;
+            a += x;
+            b += (len - i) * x;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0) {
+                throw new IOException("File lebih pendek dari yang diharapkan");
+            }
+        }
+    }
+
+    // --- Sisi pengirim ---
+
+    /**
+     * Menghasilkan aliran instruksi untuk file baru secara bertahap, sebanyak
+     * yang muat di chunk berikutnya (dibatasi kredit penerima).
+     */
+    static final class Encoder {
+        private final FileChannel source;
+        private final long size;
+        private final int blockSize;
+
+        // Tabel tanda tangan: open addressing berdasarkan checksum bergulir
+        private final int[] weaks;
+        private final byte[] strongs;
+        private final int[] slots; // index blok + 1, 0 = kosong
+        private final int mask;
+        // Saringan 16 bit (8 KB, muat di cache L1) sebelum menyentuh tabel
+        private final long[] filter = new long[1024];
+        private final MessageDigest md5 = md5();
+
+        // Jendela baca file baru: buf berisi byte file [bufStart, bufStart + bufLen)
+        private final byte[] buf;
+        private long bufStart;
+        private int bufLen;
+        private int pos;          // awal jendela blok (relatif ke buf)
+        private int literalStart; // awal literal yang belum dimasukkan antrian (relatif ke buf)
+        private boolean rolling;  // a/b valid untuk jendela di pos
+        private int a;
+        private int b;
+
+        // COPY yang masih bisa disambung dengan blok berikutnya
+        private long copyStart = -1;
+        private int copyCount;
+
+        private final ArrayDeque<Op> ops = new ArrayDeque<>();
+        private boolean inputDone;
+        private long matchedBytes;
+
+        Encoder(FileChannel source, long size, int blockSize, byte[] signatures) throws IOException {
+            if (blockSize < MIN_BLOCK || blockSize > MAX_BLOCK || signatures.length % SIGNATURE_LENGTH != 0) {
+                throw new IOException("Tanda tangan delta tidak valid");
+            }
+            this.source = source;
+            this.size = size;
+            this.blockSize = blockSize;
+
+            int blocks = signatures.length / SIGNATURE_LENGTH;
+            this.weaks = new int[blocks];
+            this.strongs = new byte[blocks * STRONG_LENGTH];
+            int capacity = Integer.highestOneBit(Math.max(blocks, 1) * 2 - 1) << 1;
+            this.slots = new int[capacity];
+            this.mask = capacity - 1;
+            ByteBuffer sig = ByteBuffer.wrap(signatures);
+            for (int i = 0; i < blocks; i++) {
+                weaks[i] = sig.getInt();
+                sig.get(strongs, i * STRONG_LENGTH, STRONG_LENGTH);
+                int h = mix(weaks[i]);
+                filter[(h >>> 16) >>> 6 & 1023] |= 1L << (h >>> 16);
+                int slot = h & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = i + 1;
+            }
+
+            this.buf = new byte[Math.max(4 * 1024 * 1024, blockSize * 4)];
+        }
+
+        boolean isFinished() {
+            return inputDone && ops.isEmpty();
+        }
+
+        /**
+         * Byte file baru yang dikirim sebagai COPY (tidak lewat jaringan).
+         */
+        long matchedBytes() {
+            return matchedBytes;
+        }
+
+        /**
+         * Isi out dengan instruksi utuh sebanyak yang muat. Literal boleh dipotong
+         * di batas chunk; COPY tidak.
+         *
+         * @return jumlah byte yang ditulis (0 jika instruksi berikutnya tidak muat).
+         */
+        int next(ByteBuffer out) throws IOException {
+            int start = out.position();
+            while (true) {
+                if (ops.isEmpty()) {
+                    if (inputDone) {
+                        break;
+                    }
+                    step();
+                    continue;
+                }
+                Op op = ops.peekFirst();
+                if (op.data == null) {
+                    int length = 1 + varSize(op.start) + varSize(op.count);
+                    if (out.remaining() < length) {
+                        break;
+                    }
+                    out.put((byte) OP_COPY);
+                    putVar(out, op.start);
+                    putVar(out, op.count);
+                    ops.pollFirst();
+                } else {
+                    int room = out.remaining() - 1 - varSize(op.data.length);
+                    if (room <= 0) {
+                        break;
+                    }
+                    int n = Math.min(room, op.data.length - op.offset);
+                    out.put((byte) OP_LITERAL);
+                    putVar(out, n);
+                    out.put(op.data, op.offset, n);
+                    op.offset += n;
+                    if (op.offset == op.data.length) {
+                        ops.pollFirst();
+                    }
+                }
+            }
+            return out.position() - start;
+        }
+
+        /**
+         * Proses file baru sampai minimal satu instruksi masuk antrian (atau file habis).
+         */
+        private void step() throws IOException {
+            while (ops.isEmpty() && !inputDone) {
+                while (pos + blockSize > bufLen) {
+                    if (!refill()) {
+                        // Sisa file lebih pendek dari satu blok: semuanya literal
+                        flushCopy();
+                        pos = bufLen;
+                        flushLiteral();
+                        inputDone = true;
+                        return;
+                    }
+                }
+                if (!rolling) {
+                    int w = weak(buf, pos, blockSize);
+                    a = w & 0xFFFF;
+                    b = w >>> 16;
+                    rolling = true;
+                }
+                int match = find((a & 0xFFFF) | (b << 16));
+                if (match >= 0) {
+                    flushLiteral();
+                    if (copyStart >= 0 && copyStart + copyCount == match) {
+                        copyCount++;
+                    } else {
+                        flushCopy();
+                        copyStart = match;
+                        copyCount = 1;
+                    }
+                    matchedBytes += blockSize;
+                    pos += blockSize;
+                    literalStart = pos;
+                    rolling = false;
+                    continue;
+                }
+
+                // Tidak cocok: byte ini jadi literal, geser jendela satu byte
+                flushCopy();
+                if (pos + blockSize >= bufLen && !refill()) {
+                    // Blok terakhir penuh tanpa pasangan
+                    pos = bufLen;
+                    flushLiteral();
+                    inputDone = true;
+                    return;
+                }
+                int out = buf[pos] & 0xFF;
+                int in = buf[pos + blockSize] & 0xFF;
+                a = (a - out + in) & 0xFFFF;
+                b = (b - blockSize * out + a) & 0xFFFF;
+                pos++;
+                if (pos - literalStart >= LITERAL_SLICE) {
+                    flushLiteral();
+                }
+            }
+        }
+
+        private int find(int weak) {
+            int h = mix(weak);
+            if ((filter[(h >>> 16) >>> 6 & 1023] & (1L << (h >>> 16))) == 0) {
+                return -1;
+            }
+            int slot = h & mask;
+            boolean strongDone = false;
+            byte[] strong = null;
+            while (slots[slot] != 0) {
+                int index = slots[slot] - 1;
+                if (weaks[index] == weak) {
+                    if (!strongDone) {
+                        md5.update(buf, pos, blockSize);
+                        strong = md5.digest();
+                        strongDone = true;
+                    }
+                    if (equalsStrong(index, strong)) {
+                        return index;
+                    }
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private boolean equalsStrong(int index, byte[] strong) {
+            int base = index * STRONG_LENGTH;
+            for (int i = 0; i < STRONG_LENGTH; i++) {
+                if (strongs[base + i] != strong[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Geser isi buf supaya jendela mulai di awal, lalu baca lanjutan file.
+         *
+         * @return false jika tidak ada data baru (akhir file).
+         */
+        private boolean refill() throws IOException {
+            flushLiteral(); // literal yang tertunda ikut tergeser, masukkan antrian dulu
+            long fileEnd = bufStart + bufLen;
+            if (fileEnd >= size) {
+                return false;
+            }
+            int keep = bufLen - pos;
+            System.arraycopy(buf, pos, buf, 0, keep);
+            bufStart += pos;
+            bufLen = keep;
+            literalStart -= pos;
+            pos = 0;
+            ByteBuffer target = ByteBuffer.wrap(buf, bufLen, (int) Math.min(buf.length - bufLen, size - fileEnd));
+            while (target.hasRemaining()) {
+                int n = source.read(target, bufStart + target.position());
+                if (n < 0) {
+                    break;
+                }
+            }
+            int read = target.position() - bufLen;
+            bufLen = target.position();
+            return read > 0;
+        }
+
+        private void flushLiteral() {
+            if (pos > literalStart) {
+                byte[] data = new byte[pos - literalStart];
+                System.arraycopy(buf, literalStart, data, 0, data.length);
+                ops.addLast(new Op(data));
+            }
+            literalStart = pos;
+        }
+
+        private void flushCopy() {
+            if (copyStart >= 0) {
+                ops.addLast(new Op(copyStart, copyCount));
+                copyStart = -1;
+                copyCount = 0;
+            }
+        }
+
+        private static int mix(int weak) {
+            int h = weak * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    private static final class Op {
+        final long start;
+        final int count;
+        final byte[] data; // null = COPY
+        int offset;
+
+        Op(long start, int count) {
+            this.start = start;
+            this.count = count;
+            this.data = null;
+        }
+
+        Op(byte[] data) {
+            this.start = 0;
+            this.count = 0;
+            this.data = data;
+        }
+    }
+
+    // --- Sisi penerima ---
+
+    /**
+     * Tujuan hasil penyusunan (ditulis berurutan).
+     */
+    interface Output {
+        void write(ByteBuffer data) throws IOException;
+    }
+
+    /**
+     * Terapkan satu chunk instruksi.
+     *
+     * @param scratch buffer baca file lama (dipakai ulang antar chunk)
+     */
+    static void apply(byte[] chunk, FileChannel basis, long basisLength, int blockSize, ByteBuffer scratch,
+            Output out) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(chunk);
+        long blocks = basisLength / blockSize;
+        while (in.hasRemaining()) {
+            int op = in.get();
+            if (op == OP_COPY) {
+                long start = getVar(in);
+                long count = getVar(in);
+                if (start < 0 || count <= 0 || start + count > blocks) {
+                    throw new IOException("Instruksi COPY di luar file lama");
+                }
+                long position = start * blockSize;
+                long end = (start + count) * blockSize;
+                while (position < end) {
+                    scratch.clear().limit((int) Math.min(scratch.capacity(), end - position));
+                    readFully(basis, scratch, position);
+                    scratch.flip();
+                    position += scratch.remaining();
+                    out.write(scratch);
+                }
+            } else if (op == OP_LITERAL) {
+                int length = (int) getVar(in);
+                if (length <= 0 || length > in.remaining()) {
+                    throw new IOException("Instruksi LITERAL terpotong");
+                }
+                ByteBuffer data = in.slice().limit(length);
+                in.position(in.position() + length);
+                out.write(data);
+            } else {
+                throw new IOException("Instruksi delta tidak dikenal: " + op);
+            }
+        }
+    }
+
+    // --- Varint (sama dengan WireFormat) ---
+
+    private static int varSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVar(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long getVar(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw new IOException("Instruksi delta terpotong");
+            }
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint terlalu panjang");
+    }
+}
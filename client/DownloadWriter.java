@@ -0,0 +1,630 @@
+package client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32C;
+import javax.swing.SwingUtilities;
+
+/**
+ * Thread khusus untuk menulis file download ke disk.
+ *
+ * ServerListener cukup memasukkan chunk ke antrian (bounded), jadi chat yang
+ * datang setelah chunk file tidak ikut menunggu disk. Buka file, tulis,
+ * rename .part -> final semuanya jalan di thread ini, bukan di EDT.
+ *
+ * Flow control: kredit (FILE_CREDIT) baru diberikan setelah data tertulis,
+ * jadi pengirim tidak pernah lebih dari WINDOW byte di depan disk kita.
+ *
+ * Resume: di samping .part disimpan file .part.meta berisi offset yang
+ * sudah di-force ke disk. Jika file yang sama (nama & ukuran) ditawarkan lagi,
+ * offset itu dikirim ke pengirim bersama CRC32C isi .part sampai offset tersebut
+ * (FILE_RESUME). Pengirim yang isinya cocok melanjutkan dari sana.
+ *
+ * Delta: jika tidak ada .part tapi downloads/ sudah punya file dengan nama yang
+ * sama (versi lama), tanda tangan bloknya dikirim ke pengirim (FILE_DELTA, lihat
+ * DeltaSync). Jika pengirim setuju, chunk berisi instruksi COPY/LITERAL dan
+ * kredit dihitung dari byte instruksi yang sudah diterapkan. Hasil akhirnya
+ * dicek dengan SHA-256 dari FILE_REQUEST.
+ */
+public class DownloadWriter {
+
+    // Batas antrian chunk: jika disk terus lebih lambat dari jaringan, listener
+    // akhirnya ikut tertahan (backpressure) daripada memori membengkak
+    private static final int QUEUE_CAPACITY = 256;
+
+    // Memory-mapped hanya jika diaktifkan (-Dclient.download.mmap=true). Default mati
+    // karena di Windows file yang masih ter-map tidak bisa di-rename.
+    private static final boolean USE_MMAP = Boolean.getBoolean("client.download.mmap");
+    private static final long MMAP_LIMIT = 256L * 1024 * 1024;
+
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
+    // Jendela flow control per download: byte yang boleh dalam perjalanan
+    // (socket + server + antrian ini) sebelum pengirim harus menunggu kredit
+    static final long WINDOW = Long.getLong("client.download.windowBytes", 4L * 1024 * 1024);
+
+    // Jarak antar checkpoint resume (force data + tulis .part.meta)
+    private static final long CHECKPOINT_BYTES = 8L * 1024 * 1024;
+
+    // Delta hanya dicoba jika versi lama & file baru minimal sebesar ini (-Dclient.delta.enabled=false mematikan)
+    private static final boolean DELTA_ENABLED = Boolean.parseBoolean(
+            System.getProperty("client.delta.enabled", "true"));
+    private static final long DELTA_MIN_BYTES = 64 * 1024;
+
+    private final ClientMain gui;
+    private final ClientService service; // pengirim FILE_CREDIT / FILE_REJECT
+    private final File downloadDir = new File("downloads");
+    private final BlockingQueue<Runnable> tasks = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    // Progress gabungan semua download yang terbuka & nama file yang sedang dipakai
+    // (hanya diakses thread writer)
+    private final Set<String> activeNames = new HashSet<>();
+    private final ByteBuffer deltaScratch = ByteBuffer.allocate(256 * 1024);
+    private long activeWritten;
+    private long activeExpected;
+    private int lastPercentage = -1;
+    private long lastProgressAt;
+
+    /**
+     * Satu file yang sedang diterima. Field I/O hanya disentuh thread writer.
+     */
+    public static class Download {
+        final long transferId;
+        final long expectedSize;
+        final byte[] contentHash; // SHA-256 dari FILE_REQUEST (null jika pengirim tidak mengirim)
+        volatile String fileName; // bisa diganti writer jika namanya bentrok
+        volatile boolean cancelled;
+
+        FileChannel channel;
+        MappedByteBuffer mapped;
+        long bytesWritten;
+        long granted; // offset kredit terakhir yang diberikan ke pengirim
+        boolean accepted;
+        boolean awaitingResume; // FILE_RESUME sudah dikirim, menunggu balasan pengirim
+        long resumableOffset;   // offset tervalidasi dari .part.meta (0 = mulai dari awal)
+        long resumeChecksum;    // CRC32C isi .part sampai resumableOffset
+        long checkpointAt;
+
+        // Delta: versi lama sebagai sumber COPY
+        FileChannel basis;
+        long basisLength;
+        int blockSize;
+        boolean awaitingDelta; // FILE_DELTA sudah dikirim, menunggu balasan pengirim
+        boolean delta;         // chunk berisi instruksi, bukan data mentah
+        long deltaConsumed;    // byte instruksi yang sudah diterapkan (dasar kredit)
+
+        boolean awaitingP2p;   // FILE_P2P sudah ditawarkan, menunggu hasil koneksi langsung
+
+        Download(long transferId, String fileName, long expectedSize, byte[] contentHash) {
+            this.transferId = transferId;
+            this.fileName = fileName;
+            this.expectedSize = expectedSize;
+            this.contentHash = contentHash;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    public DownloadWriter(ClientMain gui, ClientService service) {
+        this.gui = gui;
+        this.service = service;
+        Thread thread = new Thread(this::runLoop, "ClientDownloadWriterThread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // --- API untuk ServerListener (tidak pernah menyentuh disk) ---
+
+    public Download begin(long transferId, String fileName, long expectedSize, byte[] contentHash)
+            throws InterruptedException {
+        Download download = new Download(transferId, fileName, expectedSize, contentHash);
+        tasks.put(() -> open(download));
+        return download;
+    }
+
+    /**
+     * User menerima file: beri kredit awal (setelah .part siap). Jika koneksi
+     * langsung ditawarkan, kredit menunggu hasilnya (p2pSettled).
+     */
+    public void accept(Download download, boolean awaitingP2p) {
+        enqueueQuietly(() -> {
+            download.accepted = true;
+            download.awaitingP2p = awaitingP2p;
+            if (download.resumableOffset > 0 && download.channel != null) {
+                // Tanya pengirim dulu; kredit diberikan setelah offset awal disepakati
+                download.awaitingResume = true;
+                service.sendFileResume(download.transferId, download.resumableOffset, download.resumeChecksum);
+            } else if (download.basis != null && requestDelta(download)) {
+                download.awaitingDelta = true;
+            } else {
+                grantCredit(download);
+            }
+        });
+    }
+
+    /**
+     * Balasan FILE_DELTA dari pengirim: blockSize sama = chunk berikutnya berupa
+     * instruksi delta, 0 = data mentah biasa.
+     */
+    public void deltaFrom(Download download, int blockSize) {
+        enqueueQuietly(() -> {
+            if (!download.awaitingDelta || download.channel == null) {
+                return;
+            }
+            download.awaitingDelta = false;
+            if (blockSize > 0 && blockSize == download.blockSize) {
+                download.delta = true;
+                SwingUtilities.invokeLater(() -> gui.logMessage(String.format(
+                        "Menerima '%s' sebagai delta dari versi lama...", download.fileName)));
+            } else {
+                closeBasis(download);
+            }
+            grantCredit(download);
+        });
+    }
+
+    /**
+     * Hasil FILE_P2P dari pengirim (langsung atau relay): kredit boleh mengalir.
+     */
+    public void p2pSettled(Download download) {
+        enqueueQuietly(() -> {
+            if (!download.awaitingP2p) {
+                return;
+            }
+            download.awaitingP2p = false;
+            grantCredit(download);
+        });
+    }
+
+    /**
+     * Balasan FILE_RESUME dari pengirim: chunk berikutnya mulai dari offset ini.
+     */
+    public void resumeFrom(Download download, long offset) {
+        enqueueQuietly(() -> {
+            if (!download.awaitingResume || download.channel == null) {
+                return;
+            }
+            download.awaitingResume = false;
+            long start = offset == download.resumableOffset ? offset : 0;
+            if (start == 0) {
+                metaFile(download).delete(); // isi lama tidak cocok, checkpoint lama tidak berlaku
+            }
+            download.bytesWritten = start;
+            download.checkpointAt = start;
+            activeWritten += start;
+            if (download.mapped != null) {
+                download.mapped.position((int) start);
+            }
+            if (start > 0) {
+                SwingUtilities.invokeLater(() -> gui.logMessage(String.format(
+                        "Melanjutkan '%s' dari %d KB...", download.fileName, start / 1024)));
+            }
+            grantCredit(download);
+            reportProgress();
+        });
+    }
+
+    public void write(Download download, byte[] chunk) throws InterruptedException {
+        if (!download.cancelled) {
+            tasks.put(() -> append(download, chunk));
+        }
+    }
+
+    public void finish(Download download) throws InterruptedException {
+        tasks.put(() -> complete(download));
+    }
+
+    /**
+     * Batalkan download (ditolak user). File .part dihapus.
+     */
+    public void cancel(Download download) {
+        download.cancelled = true;
+        enqueueQuietly(() -> {
+            close(download);
+            new File(downloadDir, download.fileName + ".part").delete();
+            metaFile(download).delete();
+        });
+    }
+
+    /**
+     * Koneksi putus / pengirim batal: simpan checkpoint, biarkan .part tetap ada
+     * supaya bisa dilanjutkan.
+     */
+    public void abort(Download download) {
+        download.cancelled = true;
+        enqueueQuietly(() -> {
+            checkpoint(download);
+            close(download);
+        });
+    }
+
+    private void enqueueQuietly(Runnable task) {
+        try {
+            tasks.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // --- Thread writer ---
+
+    private void runLoop() {
+        while (true) {
+            try {
+                tasks.take().run();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void open(Download download) {
+        if (download.cancelled) {
+            return;
+        }
+        try {
+            if (!downloadDir.exists())
+                downloadDir.mkdir();
+
+            // Dua pengirim dengan nama file sama tidak boleh berbagi .part
+            download.fileName = uniqueName(download.fileName);
+
+            // Simpan sebagai .part dulu, dialokasikan sesuai ukuran yang diumumkan
+            File tempFile = new File(downloadDir, download.fileName + ".part");
+            long resumable = tempFile.exists() ? readCheckpoint(download, tempFile.length()) : 0;
+            RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+            raf.setLength(download.expectedSize);
+            download.channel = raf.getChannel();
+            if (resumable > 0) {
+                download.resumableOffset = resumable;
+                download.resumeChecksum = crc32c(download.channel, resumable);
+            } else {
+                openBasis(download);
+            }
+            activeNames.add(download.fileName);
+            activeExpected += download.expectedSize;
+
+            if (USE_MMAP && download.expectedSize > 0 && download.expectedSize <= MMAP_LIMIT) {
+                download.mapped = download.channel.map(FileChannel.MapMode.READ_WRITE, 0, download.expectedSize);
+            }
+        } catch (IOException e) {
+            fail(download, "ERROR Init File: " + e.getMessage());
+        }
+    }
+
+    private void append(Download download, byte[] chunk) {
+        if (download.cancelled || download.channel == null) {
+            return;
+        }
+        try {
+            if (download.delta) {
+                DeltaSync.apply(chunk, download.basis, download.basisLength, download.blockSize, deltaScratch,
+                        data -> writeOutput(download, data));
+                download.deltaConsumed += chunk.length;
+            } else {
+                writeOutput(download, ByteBuffer.wrap(chunk));
+            }
+            if (download.bytesWritten - download.checkpointAt >= CHECKPOINT_BYTES) {
+                checkpoint(download);
+            }
+            grantCredit(download);
+            reportProgress();
+        } catch (IOException e) {
+            fail(download, "ERROR Write: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Tulis berurutan di bytesWritten (.part sudah dialokasikan sebesar expectedSize).
+     */
+    private void writeOutput(Download download, ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        if (download.delta && download.bytesWritten + length > download.expectedSize) {
+            throw new IOException("Hasil delta melebihi ukuran file");
+        }
+        if (download.mapped != null && download.mapped.remaining() >= length) {
+            download.mapped.put(src);
+        } else {
+            long start = download.bytesWritten;
+            while (src.hasRemaining()) {
+                download.channel.write(src, start + (length - src.remaining()));
+            }
+        }
+        download.bytesWritten += length;
+        activeWritten += length;
+    }
+
+    private void complete(Download download) {
+        if (download.cancelled || download.channel == null) {
+            // JIKA DITOLAK, TETAP MATIKAN PROGRESS BAR
+            SwingUtilities.invokeLater(() -> gui.updateFileProgress(false, 0, ""));
+            return;
+        }
+        try {
+            if (download.mapped != null) {
+                download.mapped.force();
+            }
+            // Ukuran yang diumumkan bisa saja tidak cocok; pakai jumlah byte yang benar-benar diterima
+            if (download.bytesWritten != download.expectedSize) {
+                download.channel.truncate(download.bytesWritten);
+            }
+            if (download.delta && !matchesContentHash(download)) {
+                // Versi lama berubah di tengah jalan / tabrakan checksum: jangan timpa apa pun
+                String name = download.fileName;
+                close(download);
+                new File(downloadDir, name + ".part").delete();
+                metaFile(download).delete();
+                SwingUtilities.invokeLater(() -> {
+                    gui.logMessage("ERROR: Hasil delta '" + name + "' tidak cocok, kirim ulang file.");
+                    gui.updateFileProgress(false, 0, "");
+                });
+                return;
+            }
+            close(download);
+
+            File tempFile = new File(downloadDir, download.fileName + ".part");
+            File finalFile = new File(downloadDir, download.fileName);
+            Files.move(tempFile.toPath(), finalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            metaFile(download).delete();
+
+            boolean idle = activeNames.isEmpty();
+            String savedName = download.fileName;
+            SwingUtilities.invokeLater(() -> {
+                gui.logMessage("✅ File tersimpan: " + savedName);
+                // Matikan Progress Bar (Sukses) jika tidak ada download lain
+                if (idle) {
+                    gui.updateFileProgress(false, 100, "");
+                }
+            });
+        } catch (IOException e) {
+            fail(download, "ERROR Finalizing: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Perpanjang kredit begitu separuh jendela sudah tertulis ke disk.
+     */
+    private void grantCredit(Download download) {
+        if (!download.accepted || download.awaitingResume || download.awaitingDelta || download.awaitingP2p
+                || download.cancelled || download.channel == null) {
+            return;
+        }
+        // Mode delta: pengirim menghitung byte instruksi, bukan byte file
+        long consumed = download.delta ? download.deltaConsumed : download.bytesWritten;
+        long target = consumed + WINDOW;
+        if (target - download.granted >= WINDOW / 2) {
+            download.granted = target;
+            service.sendFileCredit(download.transferId, target);
+        }
+    }
+
+    // --- Delta ---
+
+    /**
+     * Versi lama di downloads/ (nama sama) sebagai sumber delta, jika layak.
+     */
+    private void openBasis(Download download) {
+        File old = new File(downloadDir, download.fileName);
+        if (!DELTA_ENABLED || download.contentHash == null || download.expectedSize < DELTA_MIN_BYTES
+                || !old.isFile() || old.length() < DELTA_MIN_BYTES) {
+            return;
+        }
+        try {
+            download.basis = FileChannel.open(old.toPath(), StandardOpenOption.READ);
+            download.basisLength = download.basis.size();
+        } catch (IOException e) {
+            download.basis = null; // tanpa delta
+        }
+    }
+
+    /**
+     * Kirim tanda tangan blok versi lama (dibaca penuh di thread ini).
+     *
+     * @return false jika gagal; download lanjut sebagai transfer biasa.
+     */
+    private boolean requestDelta(Download download) {
+        try {
+            download.blockSize = DeltaSync.blockSizeFor(download.basisLength);
+            byte[] signatures = DeltaSync.signatures(download.basis, download.basisLength, download.blockSize);
+            service.sendFileDelta(download.transferId, download.blockSize, signatures);
+            return true;
+        } catch (IOException e) {
+            closeBasis(download);
+            return false;
+        }
+    }
+
+    private boolean matchesContentHash(Download download) throws IOException {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        long position = 0;
+        while (position < download.bytesWritten) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), download.bytesWritten - position));
+            int read = download.channel.read(buffer, position);
+            if (read <= 0) {
+                return false;
+            }
+            buffer.flip();
+            sha.update(buffer);
+            position += read;
+        }
+        return Arrays.equals(sha.digest(), download.contentHash);
+    }
+
+    private void closeBasis(Download download) {
+        if (download.basis != null) {
+            try {
+                download.basis.close();
+            } catch (IOException ignored) {
+            }
+            download.basis = null;
+        }
+    }
+
+    // --- Checkpoint resume ---
+
+    private File metaFile(Download download) {
+        return new File(downloadDir, download.fileName + ".part.meta");
+    }
+
+    /**
+     * Pastikan data sampai bytesWritten ada di disk, baru catat offset-nya.
+     * Urutan ini penting: meta tidak boleh mendahului data.
+     */
+    private void checkpoint(Download download) {
+        if (download.channel == null || download.awaitingResume || download.bytesWritten == 0) {
+            return;
+        }
+        try {
+            if (download.mapped != null) {
+                download.mapped.force();
+            } else {
+                download.channel.force(false);
+            }
+            Properties meta = new Properties();
+            meta.setProperty("size", Long.toString(download.expectedSize));
+            meta.setProperty("offset", Long.toString(download.bytesWritten));
+            try (OutputStream out = new FileOutputStream(metaFile(download))) {
+                meta.store(out, "resume checkpoint");
+            }
+            download.checkpointAt = download.bytesWritten;
+        } catch (IOException e) {
+            // Checkpoint gagal hanya berarti resume mulai dari checkpoint sebelumnya
+        }
+    }
+
+    /**
+     * @return offset yang bisa dilanjutkan, atau 0 jika .part ini bukan untuk file
+     *         berukuran sama / meta tidak ada / rusak.
+     */
+    private long readCheckpoint(Download download, long partLength) {
+        File meta = metaFile(download);
+        if (!meta.exists()) {
+            return 0;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(meta)) {
+            props.load(in);
+            long size = Long.parseLong(props.getProperty("size", "-1"));
+            long offset = Long.parseLong(props.getProperty("offset", "0"));
+            if (size != download.expectedSize || offset <= 0 || offset > size || offset > partLength) {
+                return 0;
+            }
+            return offset;
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static long crc32c(FileChannel channel, long length) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        long position = 0;
+        while (position < length) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                throw new IOException("File lebih pendek dari offset resume");
+            }
+            buffer.flip();
+            crc.update(buffer);
+            position += read;
+        }
+        return crc.getValue();
+    }
+
+    private void close(Download download) {
+        download.mapped = null;
+        closeBasis(download);
+        if (download.channel != null) {
+            activeNames.remove(download.fileName);
+            activeWritten -= download.bytesWritten;
+            activeExpected -= download.expectedSize;
+            if (activeNames.isEmpty()) {
+                activeWritten = 0;
+                activeExpected = 0;
+                lastPercentage = -1;
+            }
+            try {
+                download.channel.close();
+            } catch (IOException ignored) {
+            }
+            download.channel = null;
+        }
+    }
+
+    private void fail(Download download, String error) {
+        download.cancelled = true;
+        checkpoint(download);
+        close(download);
+        // Pengirim harus berhenti, bukan menunggu kredit selamanya
+        service.sendFileReject(download.transferId, error);
+        SwingUtilities.invokeLater(() -> {
+            gui.logMessage(error);
+            gui.updateFileProgress(false, 0, "");
+        });
+    }
+
+    private String uniqueName(String fileName) {
+        if (!activeNames.contains(fileName)) {
+            return fileName;
+        }
+        int dot = fileName.lastIndexOf('.');
+        String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+        String ext = dot > 0 ? fileName.substring(dot) : "";
+        for (int n = 2;; n++) {
+            String candidate = base + " (" + n + ")" + ext;
+            if (!activeNames.contains(candidate)) {
+                return candidate;
+            }
+        }
+    }
+
+    private void reportProgress() {
+        if (activeExpected <= 0) {
+            return;
+        }
+        int percentage = (int) ((activeWritten * 100) / activeExpected);
+        long now = System.currentTimeMillis();
+        if (percentage != lastPercentage && now - lastProgressAt >= PROGRESS_INTERVAL_MS) {
+            lastPercentage = percentage;
+            lastProgressAt = now;
+            String statusText = activeNames.size() > 1
+                    ? String.format("Downloading %d file... %d%%", activeNames.size(), percentage)
+                    : String.format("Downloading... %d%%", percentage);
+            SwingUtilities.invokeLater(() -> gui.updateFileProgress(true, percentage, statusText));
+        }
+    }
+}
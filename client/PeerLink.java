@@ -0,0 +1,222 @@
+package client;
+
+import common.Message;
+import common.MessageType;
+import common.WireFormat;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Koneksi langsung antar klien untuk isi file (FILE_CHUNK + FILE_COMPLETE).
+ * Server hanya perantara alamat dan token lewat FILE_P2P; kredit, resume,
+ * delta, dan penolakan tetap lewat server. Frame memakai WireFormat yang sama.
+ *
+ * Penerima membuka Listener di port acak dan menawarkan port + token; pengirim
+ * mencoba connect (Sender) dan membuka koneksi dengan frame FILE_P2P berisi
+ * transferId + token. Hanya satu koneksi dengan token yang cocok yang diterima.
+ */
+final class PeerLink {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("client.p2p.enabled", "true"));
+
+    private static final int ACCEPT_TIMEOUT_MS = 15_000;
+    private static final int CONNECT_TIMEOUT_MS = 2_000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 2_000;
+
+    private PeerLink() {
+    }
+
+    /**
+     * Tujuan frame dari koneksi langsung (jalur yang sama dengan frame dari server).
+     */
+    interface Sink {
+        void frame(Message msg) throws InterruptedException;
+
+        // Koneksi putus sebelum FILE_COMPLETE
+        void lost(long transferId, String reason);
+    }
+
+    // --- Sisi penerima ---
+
+    static final class Listener implements Runnable {
+        final long transferId;
+        final long token;
+        private final ServerSocket server;
+        private final Sink sink;
+        private volatile Socket peer;
+        private volatile boolean closed;
+        private volatile boolean expected; // pengirim sudah menjawab 1 (langsung)
+
+        private Listener(long transferId, ServerSocket server, Sink sink) {
+            this.transferId = transferId;
+            this.token = ThreadLocalRandom.current().nextLong();
+            this.server = server;
+            this.sink = sink;
+        }
+
+        /**
+         * Buka port acak dan mulai menunggu pengirim. Null jika port tidak bisa dibuka.
+         */
+        static Listener open(long transferId, Sink sink) {
+            try {
+                ServerSocket server = new ServerSocket(0);
+                server.setSoTimeout(ACCEPT_TIMEOUT_MS);
+                Listener listener = new Listener(transferId, server, sink);
+                Thread thread = new Thread(listener, "ClientP2PReceiverThread");
+                thread.setDaemon(true);
+                thread.start();
+                return listener;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        int port() {
+            return server.getLocalPort();
+        }
+
+        /**
+         * Pengirim menjawab 1: sejak sini, gagal menerima koneksi berarti transfer putus.
+         */
+        void expectPeer() {
+            expected = true;
+        }
+
+        void close() {
+            closed = true;
+            closeQuietly(server);
+            Socket socket = peer;
+            if (socket != null) {
+                closeQuietly(socket);
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean completed = false;
+            try {
+                DataInputStream in = acceptPeer();
+                if (in == null) {
+                    if (!closed && expected) {
+                        sink.lost(transferId, "Pengirim tidak tersambung langsung");
+                    }
+                    return;
+                }
+                while (!completed) {
+                    Message msg = WireFormat.readFrame(in);
+                    if (msg.getTransferId() != transferId) {
+                        continue;
+                    }
+                    if (msg.getType() == MessageType.FILE_CHUNK) {
+                        sink.frame(msg);
+                    } else if (msg.getType() == MessageType.FILE_COMPLETE) {
+                        completed = true;
+                        sink.frame(msg);
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed && (peer != null || expected)) {
+                    sink.lost(transferId, "Koneksi langsung terputus: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        // Terima koneksi pertama yang membawa token benar; yang lain ditutup
+        private DataInputStream acceptPeer() throws IOException {
+            while (!closed) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketTimeoutException e) {
+                    return null; // pengirim tidak pernah datang (jawabannya relay)
+                }
+                try {
+                    socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    Message hello = WireFormat.readFrame(in);
+                    if (hello.getType() == MessageType.FILE_P2P && hello.getTransferId() == transferId
+                            && hello.getChecksum() == token) {
+                        socket.setSoTimeout(0);
+                        closeQuietly(server);
+                        peer = socket;
+                        if (closed) {
+                            closeQuietly(socket); // ditutup selagi handshake
+                            return null;
+                        }
+                        return in;
+                    }
+                } catch (IOException e) {
+                    // Handshake rusak/lambat: abaikan, tunggu koneksi berikutnya
+                }
+                closeQuietly(socket);
+            }
+            return null;
+        }
+    }
+
+    // --- Sisi pengirim ---
+
+    static final class Sender {
+        private final Socket socket;
+        private final DataOutputStream out;
+
+        private Sender(Socket socket, DataOutputStream out) {
+            this.socket = socket;
+            this.out = out;
+        }
+
+        /**
+         * Hubungi penerima dan kirim handshake. Null jika tidak terjangkau.
+         */
+        static Sender connect(String host, int port, long transferId, long token) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                Message hello = new Message(MessageType.FILE_P2P);
+                hello.setTransferId(transferId);
+                hello.setChecksum(token);
+                WireFormat.writeFrame(out, hello);
+                out.flush();
+                return new Sender(socket, out);
+            } catch (IOException e) {
+                closeQuietly(socket);
+                return null;
+            }
+        }
+
+        void writeChunk(long transferId, byte[] data, int length) throws IOException {
+            WireFormat.writeFileChunk(out, transferId, data, 0, length);
+            out.flush();
+        }
+
+        void complete(Message finished) throws IOException {
+            WireFormat.writeFrame(out, finished);
+            out.flush();
+        }
+
+        void close() {
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception ignored) {
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Bukti bahwa pengirim benar-benar memegang isi file, bukan hanya tahu
+ * SHA-256 dan ukurannya (FILE_PROOF, protokol v11).
+ *
+ * Server memilih nonce acak; nonce itu menentukan beberapa potongan file yang
+ * harus di-hash. Jawabannya SHA-256(nonce + isi potongan-potongan tersebut),
+ * dihitung sama persis oleh pengirim (dari file aslinya) dan server (dari
+ * cache). Tanpa isi file, jawaban tidak bisa ditebak.
+ */
+public final class ContentProof {
+
+    public static final int NONCE_LENGTH = 16;
+
+    private static final int RANGES = 8;
+    private static final int RANGE_LENGTH = 4 * 1024;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private ContentProof() {
+    }
+
+    public static byte[] newNonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * Hitung jawaban untuk nonce ini. Hanya memakai read posisi absolut, jadi
+     * posisi channel (mis. yang sedang dipakai thread pengirim) tidak berubah.
+     */
+    public static byte[] compute(FileChannel file, long size, byte[] nonce) throws IOException {
+        MessageDigest proof = sha256();
+        proof.update(nonce);
+        ByteBuffer buf = ByteBuffer.allocate(RANGE_LENGTH);
+        if (size <= (long) RANGES * RANGE_LENGTH) {
+            // File kecil: seluruh isinya
+            hashRange(file, 0, size, proof, buf);
+            return proof.digest();
+        }
+        MessageDigest seed = sha256();
+        for (int i = 0; i < RANGES; i++) {
+            // Offset potongan ke-i = 8 byte pertama SHA-256(nonce, i), dalam [0, size - RANGE_LENGTH]
+            seed.update(nonce);
+            seed.update((byte) i);
+            long offset = Math.floorMod(ByteBuffer.wrap(seed.digest()).getLong(), size - RANGE_LENGTH + 1);
+            hashRange(file, offset, RANGE_LENGTH, proof, buf);
+        }
+        return proof.digest();
+    }
+
+    private static void hashRange(FileChannel file, long offset, long length, MessageDigest proof, ByteBuffer buf)
+            throws IOException {
+        long end = offset + length;
+        while (offset < end) {
+            buf.clear().limit((int) Math.min(buf.capacity(), end - offset));
+            int n = file.read(buf, offset);
+            if (n < 0) {
+                throw new IOException("File lebih pendek dari ukurannya");
+            }
+            buf.flip();
+            proof.update(buf);
+            offset += n;
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // SHA-256 wajib ada di setiap JVM
+        }
+    }
+}
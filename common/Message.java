@@ -1,18 +1,34 @@
 package common;
 
-import java.io.Serializable;
+/**
+ * Pesan protokol. Dikirim lewat WireFormat (biner), bukan Java serialization.
+ */
+public class Message {
 
-public class Message implements Serializable {
-    private static final long serialVersionUID = 1L;
+    // recipientId untuk "ALL"; id sesi user dibagikan server mulai dari ALL_ID + 1
+    public static final int ALL_ID = 1;
 
     private MessageType type;
     private String sender;
     private String recipient; // "ALL" atau nama user tujuan
+    // Id sesi (protokol v9): chat & sinyal dirutekan lewat id, nama hanya dikirim
+    // jika penerima mungkin belum mengenal id-nya. 0 = tidak ada
+    private int senderId;
+    private int recipientId;
     private String content; // Isi pesan teks (JUGA DIGUNAKAN UNTUK NAMA FILE PADA FILE_REQUEST)
 
     // --- FIELD KHUSUS FILE TRANSFER ---
     private long fileSize; // Ukuran total file
     private byte[] fileChunk; // Potongan data
+    private long transferId; // ID transfer (unik per file yang sedang berjalan)
+    private long checksum; // CRC32C prefix file (FILE_RESUME)
+    private byte[] contentHash; // SHA-256 seluruh isi file (FILE_REQUEST, untuk dedup di server)
+
+    // --- FIELD HANDSHAKE ---
+    private int protocolVersion; // Versi protokol wire (hanya di CONNECT)
+
+    // --- FIELD PRESENCE ---
+    private long presenceVersion; // Versi daftar user (USER_LIST_UPDATE, USER_JOINED, USER_LEFT)
 
     // Konstruktor utama
     public Message(MessageType type) {
@@ -44,6 +60,22 @@ public class Message implements Serializable {
         this.recipient = recipient;
     }
 
+    public int getSenderId() {
+        return senderId;
+    }
+
+    public void setSenderId(int senderId) {
+        this.senderId = senderId;
+    }
+
+    public int getRecipientId() {
+        return recipientId;
+    }
+
+    public void setRecipientId(int recipientId) {
+        this.recipientId = recipientId;
+    }
+
     public String getContent() {
         return content;
     }
@@ -69,4 +101,44 @@ public class Message implements Serializable {
     public void setFileChunk(byte[] fileChunk) {
         this.fileChunk = fileChunk;
     }
-}
\ No newline at end of file
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public void setTransferId(long transferId) {
+        this.transferId = transferId;
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(long checksum) {
+        this.checksum = checksum;
+    }
+
+    public byte[] getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(byte[] contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    public long getPresenceVersion() {
+        return presenceVersion;
+    }
+
+    public void setPresenceVersion(long presenceVersion) {
+        this.presenceVersion = presenceVersion;
+    }
+}
@@ -1,24 +1,62 @@
 package common;
 
 public enum MessageType {
-    
+
+    // Kode 1 byte di wire (lihat WireFormat). Jangan ubah kode yang sudah ada,
+    // tipe baru ambil kode yang belum terpakai.
+
     // 1. Tipe Koneksi & Status
-    CONNECT,            // Klien meminta koneksi ke server
-    DISCONNECT,         // Klien meminta putus koneksi
-    USER_LIST_UPDATE,   // Server mengirimkan daftar pengguna yang terkoneksi
+    CONNECT(0x01),            // Klien meminta koneksi ke server
+    DISCONNECT(0x02),         // Klien meminta putus koneksi
+    USER_LIST_UPDATE(0x03),   // Snapshot daftar user + versi presence (klien -> server: minta snapshot)
+    USER_JOINED(0x04),        // Delta presence: satu user masuk
+    USER_LEFT(0x05),          // Delta presence: satu user keluar
+    PING(0x06),               // Heartbeat: server -> klien yang diam (atau sebaliknya), wajib dibalas PONG
+    PONG(0x07),               // Balasan PING
     
 // **FITUR BARU: Indikator Pengetikan**
-    TYPING_START,       // Klien memulai pengetikan (untuk Private Chat)
-    TYPING_STOP,        // Klien berhenti mengetik
+    TYPING_START(0x10),       // Klien memulai pengetikan (untuk Private Chat)
+    TYPING_STOP(0x11),        // Klien berhenti mengetik
     
     // 2. Tipe Chat & Aksi
-    BROADCAST_CHAT,     // Pesan teks publik
-    PRIVATE_CHAT,       // Pesan teks pribadi
-    BUZZ,               // Fitur Window Shake
+    BROADCAST_CHAT(0x20),     // Pesan teks publik
+    PRIVATE_CHAT(0x21),       // Pesan teks pribadi
+    BUZZ(0x22),               // Fitur Window Shake
 
     // 3. Tipe File Transfer (Yang kita gunakan di ClientService)
-    FILE_REQUEST,       // Klien meminta/menawarkan transfer file (Header)
-    FILE_CHUNK,         // Data biner aktual (potongan file)
-    FILE_COMPLETE,      // Sinyal bahwa pengiriman/penerimaan potongan file selesai
-    FILE_REJECT         // Penolakan transfer file (oleh penerima)
-}
\ No newline at end of file
+    FILE_REQUEST(0x30),       // Klien meminta/menawarkan transfer file (Header)
+    FILE_CHUNK(0x31),         // Data biner aktual (potongan file)
+    FILE_COMPLETE(0x32),      // Sinyal bahwa pengiriman/penerimaan potongan file selesai
+    FILE_REJECT(0x33),        // Penolakan/pembatalan transfer file (penerima, atau server ke pengirim)
+    FILE_CREDIT(0x34),        // Flow control: penerima mengizinkan pengirim maju sampai offset fileSize
+    FILE_RESUME(0x35),        // Lanjutkan dari .part: penerima kirim offset + checksum, pengirim balas offset yang dipakai
+    FILE_CACHED(0x36),        // Server sudah punya isi file (contentHash sama): upload dilewati
+    FILE_DELTA(0x37),         // Delta: penerima kirim tanda tangan blok versi lama, pengirim balas blockSize (0 = kirim utuh)
+    FILE_P2P(0x38),           // Transfer langsung: penerima tawarkan port + token, pengirim balas 1 (langsung) / 0 (relay)
+    FILE_PROOF(0x39);         // Cache hit: server kirim nonce (contentHash), pengirim balas bukti isi file (lihat ContentProof)
+
+    private static final MessageType[] BY_CODE = new MessageType[256];
+
+    static {
+        for (MessageType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private final int code;
+
+    MessageType(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @return null jika kode tidak dikenal.
+     */
+    public static MessageType fromCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+}
@@ -0,0 +1,221 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Flyweight untuk membaca frame tanpa membuat Message: wrap() hanya mencatat
+ * posisi tiap field di buffer, field string/bytes baru disalin kalau memang
+ * diminta. Satu objek dipakai ulang untuk setiap frame (satu per thread pembaca).
+ *
+ * View hanya valid selama buffer frame-nya belum dipakai untuk hal lain.
+ */
+public final class MessageView {
+
+    private ByteBuffer frame;
+    private MessageType type;
+    private int flags;
+
+    // Posisi absolut [offset, offset + length) field berukuran variabel
+    private int senderOffset;
+    private int senderLength;
+    private int recipientOffset;
+    private int recipientLength;
+    private int contentOffset;
+    private int contentLength;
+    private int chunkOffset;
+    private int chunkLength;
+    private int hashOffset;
+    private int hashLength;
+
+    private int senderId;
+    private int recipientId;
+    private long transferId;
+    private long fileSize;
+    private int protocolVersion;
+    private long presenceVersion;
+    private long checksum;
+
+    private int pos;
+    private int end;
+
+    /**
+     * Arahkan view ke frame lengkap (posisi buffer = awal header panjang).
+     * Buffer tidak diubah.
+     */
+    public MessageView wrap(ByteBuffer frame) throws IOException {
+        int start = frame.position();
+        int length = frame.getInt(start);
+        WireFormat.checkLength(length);
+        if (length > frame.remaining() - WireFormat.HEADER_SIZE) {
+            throw new IOException("Frame terpotong");
+        }
+        this.frame = frame;
+        this.pos = start + WireFormat.HEADER_SIZE;
+        this.end = pos + length;
+
+        int code = get();
+        type = MessageType.fromCode(code);
+        if (type == null) {
+            throw new IOException("Tipe pesan tidak dikenal: " + code);
+        }
+        flags = (int) getVarLong();
+
+        senderLength = has(WireFormat.F_SENDER) ? getLength() : 0;
+        senderOffset = skip(senderLength);
+        recipientLength = has(WireFormat.F_RECIPIENT) ? getLength() : 0;
+        recipientOffset = skip(recipientLength);
+        senderId = has(WireFormat.F_SENDER_ID) ? (int) getVarLong() : 0;
+        recipientId = has(WireFormat.F_RECIPIENT_ID) ? (int) getVarLong() : 0;
+        transferId = has(WireFormat.F_TRANSFER_ID) ? getVarLong() : 0;
+        contentLength = has(WireFormat.F_CONTENT) ? getLength() : 0;
+        contentOffset = skip(contentLength);
+        fileSize = has(WireFormat.F_FILE_SIZE) ? getVarLong() : 0;
+        chunkLength = has(WireFormat.F_FILE_CHUNK) ? getLength() : 0;
+        chunkOffset = skip(chunkLength);
+        protocolVersion = has(WireFormat.F_PROTOCOL_VERSION) ? (int) getVarLong() : 0;
+        presenceVersion = has(WireFormat.F_PRESENCE_VERSION) ? getVarLong() : 0;
+        checksum = has(WireFormat.F_CHECKSUM) ? getVarLong() : 0;
+        hashLength = has(WireFormat.F_CONTENT_HASH) ? getLength() : 0;
+        hashOffset = skip(hashLength);
+        return this;
+    }
+
+    public MessageType getType() {
+        return type;
+    }
+
+    public int getSenderId() {
+        return senderId;
+    }
+
+    public int getRecipientId() {
+        return recipientId;
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public boolean hasRecipient() {
+        return has(WireFormat.F_RECIPIENT);
+    }
+
+    /**
+     * Nama tujuan lewat cache (tanpa alokasi untuk nama yang sudah pernah dilihat).
+     *
+     * @return null jika frame tidak membawa nama tujuan.
+     */
+    public String recipient(NameCache names) {
+        return hasRecipient() ? names.get(frame, recipientOffset, recipientLength) : null;
+    }
+
+    public boolean hasContent() {
+        return has(WireFormat.F_CONTENT);
+    }
+
+    /**
+     * Buffer frame + posisi isi content (UTF-8), untuk disalin apa adanya ke frame keluar.
+     */
+    public ByteBuffer buffer() {
+        return frame;
+    }
+
+    public int contentOffset() {
+        return contentOffset;
+    }
+
+    public int contentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Content sebagai String (alokasi; hanya jika memang perlu, misalnya untuk log).
+     */
+    public String content() {
+        return hasContent() ? string(contentOffset, contentLength) : null;
+    }
+
+    /**
+     * Decode penuh ke Message (jalur yang tidak panas: handshake, kontrol file, dll).
+     */
+    public Message toMessage() {
+        Message msg = new Message(type);
+        if (has(WireFormat.F_SENDER)) {
+            msg.setSender(string(senderOffset, senderLength));
+        }
+        if (hasRecipient()) {
+            msg.setRecipient(string(recipientOffset, recipientLength));
+        }
+        msg.setSenderId(senderId);
+        msg.setRecipientId(recipientId);
+        msg.setTransferId(transferId);
+        msg.setContent(content());
+        msg.setFileSize(fileSize);
+        if (has(WireFormat.F_FILE_CHUNK)) {
+            msg.setFileChunk(bytes(chunkOffset, chunkLength));
+        }
+        msg.setProtocolVersion(protocolVersion);
+        msg.setPresenceVersion(presenceVersion);
+        msg.setChecksum(checksum);
+        if (has(WireFormat.F_CONTENT_HASH)) {
+            msg.setContentHash(bytes(hashOffset, hashLength));
+        }
+        return msg;
+    }
+
+    // --- Parsing ---
+
+    private boolean has(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    private int get() throws IOException {
+        if (pos >= end) {
+            throw new IOException("Frame terpotong");
+        }
+        return frame.get(pos++) & 0xFF;
+    }
+
+    private long getVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint terlalu panjang");
+    }
+
+    private int getLength() throws IOException {
+        long len = getVarLong();
+        if (len < 0 || len > end - pos) {
+            throw new IOException("Panjang field tidak valid: " + len);
+        }
+        return (int) len;
+    }
+
+    // Lewati field sepanjang length, kembalikan posisi awalnya
+    private int skip(int length) {
+        int offset = pos;
+        pos += length;
+        return offset;
+    }
+
+    private String string(int offset, int length) {
+        return new String(bytes(offset, length), StandardCharsets.UTF_8);
+    }
+
+    private byte[] bytes(int offset, int length) {
+        byte[] out = new byte[length];
+        frame.get(offset, out);
+        return out;
+    }
+}
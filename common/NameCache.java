@@ -0,0 +1,70 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Cache String untuk nama (username, "ALL") langsung dari byte UTF-8 di frame.
+ * Nama yang sama dipakai berulang-ulang, jadi setelah pertama kali tidak ada
+ * String atau byte[] baru yang dibuat.
+ *
+ * Tabel berukuran tetap (direct-mapped): slot yang bentrok cukup ditimpa.
+ * Aman dipakai banyak thread tanpa lock karena tiap entry immutable.
+ */
+public final class NameCache {
+
+    private static final class Entry {
+        final byte[] utf8;
+        final String value;
+
+        Entry(byte[] utf8, String value) {
+            this.utf8 = utf8;
+            this.value = value;
+        }
+    }
+
+    private final Entry[] slots;
+    private final int mask;
+
+    /**
+     * @param capacity jumlah slot (dibulatkan ke pangkat dua)
+     */
+    public NameCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(16, capacity - 1) << 1);
+        this.slots = new Entry[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * String untuk buf[offset, offset + length) (posisi absolut, buffer tidak diubah).
+     */
+    public String get(ByteBuffer buf, int offset, int length) {
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + buf.get(offset + i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        Entry entry = slots[slot];
+        if (entry != null && matches(entry.utf8, buf, offset, length)) {
+            return entry.value;
+        }
+
+        byte[] utf8 = new byte[length];
+        buf.get(offset, utf8);
+        String value = new String(utf8, StandardCharsets.UTF_8);
+        slots[slot] = new Entry(utf8, value);
+        return value;
+    }
+
+    private static boolean matches(byte[] utf8, ByteBuffer buf, int offset, int length) {
+        if (utf8.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (utf8[i] != buf.get(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,572 @@
+package common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Format frame di jaringan: [int panjang payload][payload].
+ * Setiap frame berdiri sendiri, jadi bisa dibaca bertahap dari ByteBuffer
+ * (engine NIO) maupun dari stream biasa (ClientHandler & ClientService).
+ *
+ * Payload (biner, tanpa Java serialization):
+ *
+ * <pre>
+ * u8     kode MessageType
+ * varint flags  (bit field mana yang ada)
+ * [varint len + UTF-8] sender, recipient          (jika bit-nya nyala)
+ * [varint]             senderId, recipientId      (id sesi dari server)
+ * [varlong]            transferId
+ * [varint len + UTF-8] content
+ * [varlong]            fileSize
+ * [varint len + bytes] fileChunk
+ * [varint]             protocolVersion
+ * [varlong]            presenceVersion
+ * [varlong]            checksum
+ * [varint len + bytes] contentHash
+ * </pre>
+ *
+ * Field kosong tidak memakan byte sama sekali, jadi chat biasa tidak lagi
+ * membawa slot fileSize & fileChunk.
+ */
+public final class WireFormat {
+
+    // Header panjang frame (4 byte, big-endian)
+    public static final int HEADER_SIZE = 4;
+
+    // Batas atas satu frame, mencegah klien nakal meminta alokasi raksasa
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    // --- Versi protokol (dinegosiasikan saat CONNECT) ---
+    // v2: delta presence (USER_JOINED/USER_LEFT + presenceVersion)
+    // v3: transferId di pesan file (beberapa transfer berjalan bersamaan)
+    // v4: FILE_CREDIT (flow control) & FILE_REJECT sampai ke pengirim
+    // v5: FILE_RESUME + checksum (lanjutkan transfer dari .part)
+    // v6: contentHash di FILE_REQUEST + FILE_CACHED (dedup di server)
+    // v7: FILE_DELTA (kirim ulang file yang diubah sebagai delta)
+    // v8: FILE_P2P (data file lewat koneksi langsung antar klien)
+    // v9: senderId/recipientId (id sesi) menggantikan nama di chat & sinyal
+    // v10: PING/PONG (heartbeat; klien yang tidak membalas PING diputus)
+    // v11: FILE_PROOF (cache hit hanya untuk pengirim yang terbukti memegang isi file)
+    //
+    // MIN = versi terakhir yang mengubah format frame (v9 menyusun ulang bit flags).
+    // Fitur sesudahnya opsional: server memeriksa versi hasil negosiasi sesi
+    // sebelum mengirim pesan yang belum dikenal klien lama (mis. HEARTBEAT_VERSION)
+    public static final int MIN_PROTOCOL_VERSION = 9;
+    public static final int PROTOCOL_VERSION = 11;
+    public static final int HEARTBEAT_VERSION = 10;
+    public static final int CACHE_PROOF_VERSION = 11;
+
+    // --- Bit flags ---
+    // Field yang paling sering (chat & chunk) memakai 7 bit terbawah supaya
+    // flags cukup 1 byte varint
+    static final int F_SENDER_ID = 1;
+    static final int F_RECIPIENT_ID = 1 << 1;
+    static final int F_CONTENT = 1 << 2;
+    static final int F_TRANSFER_ID = 1 << 3;
+    static final int F_FILE_CHUNK = 1 << 4;
+    static final int F_FILE_SIZE = 1 << 5;
+    static final int F_SENDER = 1 << 6;
+    static final int F_RECIPIENT = 1 << 7;
+    static final int F_PROTOCOL_VERSION = 1 << 8;
+    static final int F_PRESENCE_VERSION = 1 << 9;
+    static final int F_CHECKSUM = 1 << 10;
+    static final int F_CONTENT_HASH = 1 << 11;
+
+    private WireFormat() {
+    }
+
+    /**
+     * Pilih versi yang dipakai untuk sesi ini.
+     *
+     * @return versi hasil negosiasi, atau -1 jika versi klien terlalu lama.
+     */
+    public static int negotiate(int clientVersion) {
+        if (clientVersion < MIN_PROTOCOL_VERSION) {
+            return -1;
+        }
+        return Math.min(clientVersion, PROTOCOL_VERSION);
+    }
+
+    // --- Encode ---
+
+    /**
+     * Mengubah Message menjadi frame lengkap (header + payload).
+     * Ukuran dihitung dulu supaya cukup satu alokasi byte[].
+     */
+    public static byte[] encode(Message msg) {
+        byte[] sender = utf8(msg.getSender());
+        byte[] recipient = utf8(msg.getRecipient());
+        byte[] content = utf8(msg.getContent());
+        byte[] chunk = msg.getFileChunk();
+        byte[] contentHash = msg.getContentHash();
+
+        int flags = 0;
+        int size = 1;
+        if (sender != null) {
+            flags |= F_SENDER;
+            size += varIntSize(sender.length) + sender.length;
+        }
+        if (recipient != null) {
+            flags |= F_RECIPIENT;
+            size += varIntSize(recipient.length) + recipient.length;
+        }
+        if (msg.getSenderId() != 0) {
+            flags |= F_SENDER_ID;
+            size += varIntSize(msg.getSenderId());
+        }
+        if (msg.getRecipientId() != 0) {
+            flags |= F_RECIPIENT_ID;
+            size += varIntSize(msg.getRecipientId());
+        }
+        if (msg.getTransferId() != 0) {
+            flags |= F_TRANSFER_ID;
+            size += varLongSize(msg.getTransferId());
+        }
+        if (content != null) {
+            flags |= F_CONTENT;
+            size += varIntSize(content.length) + content.length;
+        }
+        if (msg.getFileSize() != 0) {
+            flags |= F_FILE_SIZE;
+            size += varLongSize(msg.getFileSize());
+        }
+        if (chunk != null) {
+            flags |= F_FILE_CHUNK;
+            size += varIntSize(chunk.length) + chunk.length;
+        }
+        if (msg.getProtocolVersion() != 0) {
+            flags |= F_PROTOCOL_VERSION;
+            size += varIntSize(msg.getProtocolVersion());
+        }
+        if (msg.getPresenceVersion() != 0) {
+            flags |= F_PRESENCE_VERSION;
+            size += varLongSize(msg.getPresenceVersion());
+        }
+        if (msg.getChecksum() != 0) {
+            flags |= F_CHECKSUM;
+            size += varLongSize(msg.getChecksum());
+        }
+        if (contentHash != null) {
+            flags |= F_CONTENT_HASH;
+            size += varIntSize(contentHash.length) + contentHash.length;
+        }
+        size += varIntSize(flags);
+
+        byte[] frame = new byte[HEADER_SIZE + size];
+        Writer w = new Writer(frame);
+        w.putInt(size);
+        w.put(msg.getType().getCode());
+        w.putVarLong(flags);
+        w.putBytes(sender);
+        w.putBytes(recipient);
+        if ((flags & F_SENDER_ID) != 0) {
+            w.putVarLong(msg.getSenderId());
+        }
+        if ((flags & F_RECIPIENT_ID) != 0) {
+            w.putVarLong(msg.getRecipientId());
+        }
+        if ((flags & F_TRANSFER_ID) != 0) {
+            w.putVarLong(msg.getTransferId());
+        }
+        w.putBytes(content);
+        if ((flags & F_FILE_SIZE) != 0) {
+            w.putVarLong(msg.getFileSize());
+        }
+        w.putBytes(chunk);
+        if ((flags & F_PROTOCOL_VERSION) != 0) {
+            w.putVarLong(msg.getProtocolVersion());
+        }
+        if ((flags & F_PRESENCE_VERSION) != 0) {
+            w.putVarLong(msg.getPresenceVersion());
+        }
+        if ((flags & F_CHECKSUM) != 0) {
+            w.putVarLong(msg.getChecksum());
+        }
+        w.putBytes(contentHash);
+        return frame;
+    }
+
+    public static void writeFrame(DataOutputStream out, Message msg) throws IOException {
+        out.write(encode(msg));
+    }
+
+    /**
+     * Tulis frame FILE_CHUNK langsung dari buffer pemanggil: hanya header kecil
+     * yang dibuat, payload ditulis apa adanya (tanpa Message & byte[] baru per chunk).
+     * Hasilnya identik dengan encode() untuk Message FILE_CHUNK yang sama.
+     * Chunk tidak membawa recipient; server merutekan lewat transferId.
+     */
+    public static void writeFileChunk(OutputStream out, long transferId, byte[] buf, int off, int len)
+            throws IOException {
+        int flags = F_FILE_CHUNK | F_TRANSFER_ID;
+        int headerSize = 1 + varLongSize(transferId) + varIntSize(len);
+        headerSize += varIntSize(flags);
+
+        byte[] header = new byte[HEADER_SIZE + headerSize];
+        Writer w = new Writer(header);
+        w.putInt(headerSize + len);
+        w.put(MessageType.FILE_CHUNK.getCode());
+        w.putVarLong(flags);
+        w.putVarLong(transferId);
+        w.putVarLong(len);
+
+        out.write(header);
+        out.write(buf, off, len);
+    }
+
+    /**
+     * Frame chat (BROADCAST_CHAT/PRIVATE_CHAT) yang content-nya disalin apa adanya
+     * dari buffer frame lain: server me-relay chat dari MessageView tanpa decode
+     * ke String dan encode ulang. Hasilnya identik dengan encode() untuk Message yang sama.
+     *
+     * @param sender        boleh null (penerima sudah mengenal senderId)
+     * @param contentLength -1 jika pesan tidak membawa content
+     */
+    public static byte[] encodeChat(MessageType type, String sender, int senderId, int recipientId,
+            ByteBuffer src, int contentOffset, int contentLength) {
+        byte[] senderBytes = utf8(sender);
+
+        int flags = 0;
+        int size = 1;
+        if (senderBytes != null) {
+            flags |= F_SENDER;
+            size += varIntSize(senderBytes.length) + senderBytes.length;
+        }
+        if (senderId != 0) {
+            flags |= F_SENDER_ID;
+            size += varIntSize(senderId);
+        }
+        if (recipientId != 0) {
+            flags |= F_RECIPIENT_ID;
+            size += varIntSize(recipientId);
+        }
+        if (contentLength >= 0) {
+            flags |= F_CONTENT;
+            size += varIntSize(contentLength) + contentLength;
+        }
+        size += varIntSize(flags);
+
+        byte[] frame = new byte[HEADER_SIZE + size];
+        Writer w = new Writer(frame);
+        w.putInt(size);
+        w.put(type.getCode());
+        w.putVarLong(flags);
+        w.putBytes(senderBytes);
+        if ((flags & F_SENDER_ID) != 0) {
+            w.putVarLong(senderId);
+        }
+        if ((flags & F_RECIPIENT_ID) != 0) {
+            w.putVarLong(recipientId);
+        }
+        if ((flags & F_CONTENT) != 0) {
+            w.putVarLong(contentLength);
+            w.putBytes(src, contentOffset, contentLength);
+        }
+        return frame;
+    }
+
+    // --- Decode ---
+
+    public static Message decode(byte[] payload, int offset, int length) throws IOException {
+        Reader r = new Reader(payload, offset, length);
+
+        int code = r.get();
+        MessageType type = MessageType.fromCode(code);
+        if (type == null) {
+            throw new IOException("Tipe pesan tidak dikenal: " + code);
+        }
+        Message msg = new Message(type);
+
+        int flags = (int) r.getVarLong();
+        if ((flags & F_SENDER) != 0) {
+            msg.setSender(r.getString());
+        }
+        if ((flags & F_RECIPIENT) != 0) {
+            msg.setRecipient(r.getString());
+        }
+        if ((flags & F_SENDER_ID) != 0) {
+            msg.setSenderId((int) r.getVarLong());
+        }
+        if ((flags & F_RECIPIENT_ID) != 0) {
+            msg.setRecipientId((int) r.getVarLong());
+        }
+        if ((flags & F_TRANSFER_ID) != 0) {
+            msg.setTransferId(r.getVarLong());
+        }
+        if ((flags & F_CONTENT) != 0) {
+            msg.setContent(r.getString());
+        }
+        if ((flags & F_FILE_SIZE) != 0) {
+            msg.setFileSize(r.getVarLong());
+        }
+        if ((flags & F_FILE_CHUNK) != 0) {
+            msg.setFileChunk(r.getBytes());
+        }
+        if ((flags & F_PROTOCOL_VERSION) != 0) {
+            msg.setProtocolVersion((int) r.getVarLong());
+        }
+        if ((flags & F_PRESENCE_VERSION) != 0) {
+            msg.setPresenceVersion(r.getVarLong());
+        }
+        if ((flags & F_CHECKSUM) != 0) {
+            msg.setChecksum(r.getVarLong());
+        }
+        if ((flags & F_CONTENT_HASH) != 0) {
+            msg.setContentHash(r.getBytes());
+        }
+        return msg;
+    }
+
+    /**
+     * Blocking read satu frame dari stream.
+     */
+    public static Message readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return decode(payload, 0, length);
+    }
+
+    // --- Intip header tanpa decode penuh (relay apa adanya) ---
+
+    /**
+     * Tipe pesan dari frame lengkap (posisi buffer = awal header panjang).
+     * Buffer tidak diubah.
+     */
+    public static MessageType peekType(ByteBuffer frame) {
+        return MessageType.fromCode(frame.get(frame.position() + HEADER_SIZE) & 0xFF);
+    }
+
+    /**
+     * transferId dari frame lengkap, tanpa menyentuh field lain (chunk tidak disalin).
+     *
+     * @return 0 jika frame tidak membawa transferId.
+     */
+    public static long peekTransferId(ByteBuffer frame) throws IOException {
+        ByteBuffer view = frame.duplicate();
+        int length = view.getInt();
+        checkLength(length);
+        view.limit(view.position() + length);
+        view.get(); // kode tipe
+
+        int flags = (int) getVarLong(view);
+        if ((flags & F_SENDER) != 0) {
+            int skip = getLength(view);
+            view.position(view.position() + skip);
+        }
+        if ((flags & F_RECIPIENT) != 0) {
+            int skip = getLength(view);
+            view.position(view.position() + skip);
+        }
+        skipSessionIds(view, flags);
+        if ((flags & F_TRANSFER_ID) == 0) {
+            return 0;
+        }
+        return getVarLong(view);
+    }
+
+    /**
+     * Panjang data chunk (fileChunk) dari frame lengkap, tanpa menyalin apa pun.
+     *
+     * @return 0 jika frame tidak membawa chunk.
+     */
+    public static int peekChunkLength(ByteBuffer frame) throws IOException {
+        return peekChunk(frame).remaining();
+    }
+
+    /**
+     * View data chunk (fileChunk) dari frame lengkap; berbagi isi dengan frame,
+     * tidak ada yang disalin.
+     *
+     * @return buffer kosong jika frame tidak membawa chunk.
+     */
+    public static ByteBuffer peekChunk(ByteBuffer frame) throws IOException {
+        ByteBuffer view = frame.duplicate();
+        int length = view.getInt();
+        checkLength(length);
+        view.limit(view.position() + length);
+        view.get(); // kode tipe
+
+        int flags = (int) getVarLong(view);
+        if ((flags & F_SENDER) != 0) {
+            view.position(view.position() + getLength(view));
+        }
+        if ((flags & F_RECIPIENT) != 0) {
+            view.position(view.position() + getLength(view));
+        }
+        skipSessionIds(view, flags);
+        if ((flags & F_TRANSFER_ID) != 0) {
+            getVarLong(view);
+        }
+        if ((flags & F_CONTENT) != 0) {
+            view.position(view.position() + getLength(view));
+        }
+        if ((flags & F_FILE_SIZE) != 0) {
+            getVarLong(view);
+        }
+        if ((flags & F_FILE_CHUNK) == 0) {
+            return view.limit(view.position());
+        }
+        int chunkLength = getLength(view);
+        return view.limit(view.position() + chunkLength).slice();
+    }
+
+    private static void skipSessionIds(ByteBuffer view, int flags) throws IOException {
+        if ((flags & F_SENDER_ID) != 0) {
+            getVarLong(view);
+        }
+        if ((flags & F_RECIPIENT_ID) != 0) {
+            getVarLong(view);
+        }
+    }
+
+    private static long getVarLong(ByteBuffer buf) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buf.hasRemaining()) {
+                throw new IOException("Frame terpotong");
+            }
+            int b = buf.get() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint terlalu panjang");
+    }
+
+    private static int getLength(ByteBuffer buf) throws IOException {
+        long len = getVarLong(buf);
+        if (len < 0 || len > buf.remaining()) {
+            throw new IOException("Panjang field tidak valid: " + len);
+        }
+        return (int) len;
+    }
+
+    public static void checkLength(int length) throws IOException {
+        if (length < 1 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Ukuran frame tidak valid: " + length);
+        }
+    }
+
+    // --- Helper varint & UTF-8 ---
+
+    private static byte[] utf8(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static int varIntSize(int value) {
+        return varLongSize(value & 0xFFFFFFFFL);
+    }
+
+    static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static final class Writer {
+        private final byte[] buf;
+        private int pos;
+
+        Writer(byte[] buf) {
+            this.buf = buf;
+        }
+
+        void put(int b) {
+            buf[pos++] = (byte) b;
+        }
+
+        void putInt(int v) {
+            put(v >>> 24);
+            put(v >>> 16);
+            put(v >>> 8);
+            put(v);
+        }
+
+        void putVarLong(long v) {
+            while ((v & ~0x7FL) != 0) {
+                put((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            put((int) v);
+        }
+
+        void putBytes(byte[] data) {
+            if (data == null) {
+                return;
+            }
+            putVarLong(data.length);
+            System.arraycopy(data, 0, buf, pos, data.length);
+            pos += data.length;
+        }
+
+        // Salin [offset, offset + length) dari buffer lain (posisi absolut, tanpa prefix panjang)
+        void putBytes(ByteBuffer src, int offset, int length) {
+            src.get(offset, buf, pos, length);
+            pos += length;
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] buf;
+        private int pos;
+        private final int end;
+
+        Reader(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            this.pos = offset;
+            this.end = offset + length;
+        }
+
+        int get() throws IOException {
+            if (pos >= end) {
+                throw new IOException("Frame terpotong");
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        long getVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = get();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Varint terlalu panjang");
+        }
+
+        int getLength() throws IOException {
+            long len = getVarLong();
+            if (len < 0 || len > end - pos) {
+                throw new IOException("Panjang field tidak valid: " + len);
+            }
+            return (int) len;
+        }
+
+        String getString() throws IOException {
+            int len = getLength();
+            String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+
+        byte[] getBytes() throws IOException {
+            int len = getLength();
+            byte[] data = new byte[len];
+            System.arraycopy(buf, pos, data, 0, len);
+            pos += len;
+            return data;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package server;
+
+import common.Message;
+import common.MessageType;
+import common.WireFormat;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control global: laju accept, jumlah koneksi, dan jumlah handshake
+ * (koneksi yang belum CONNECT) yang boleh berjalan bersamaan. Koneksi yang
+ * ditolak langsung dibalas DISCONNECT lalu ditutup di thread accept, sebelum
+ * ada thread, buffer, atau sesi yang dibuat untuknya.
+ */
+public final class Admission {
+
+    // Frame penolakan: di-encode sekali, ditulis apa adanya ke socket yang ditolak
+    private static final byte[] REJECT_FRAME = rejectFrame();
+
+    private static final AtomicInteger connections = new AtomicInteger();
+    private static final AtomicInteger pendingHandshakes = new AtomicInteger();
+    // Hanya dipakai thread accept (satu per mode server)
+    private static final TokenBucket accepts = TokenBucket.of(ServerConfig.ADMISSION_ACCEPTS_PER_SEC,
+            ServerConfig.ADMISSION_ACCEPT_BURST);
+    private static long rejected;
+
+    private Admission() {
+    }
+
+    /**
+     * Dipanggil thread accept untuk setiap socket baru. Jika true, socket ini
+     * memegang satu jatah koneksi + handshake yang dilepas lewat Slot milik sesinya.
+     */
+    public static boolean tryAccept() {
+        String reason = null;
+        if (accepts != null && !accepts.tryTake(1)) {
+            reason = "laju koneksi";
+        } else if (ServerConfig.ADMISSION_MAX_CONNECTIONS > 0
+                && connections.get() >= ServerConfig.ADMISSION_MAX_CONNECTIONS) {
+            reason = "koneksi penuh (" + connections.get() + ")";
+        } else if (ServerConfig.ADMISSION_MAX_PENDING_HANDSHAKES > 0
+                && pendingHandshakes.get() >= ServerConfig.ADMISSION_MAX_PENDING_HANDSHAKES) {
+            reason = "handshake penuh (" + pendingHandshakes.get() + ")";
+        }
+        if (reason != null) {
+            // Log dijarangkan: saat diserbu, menulis log per koneksi justru jadi beban
+            if (rejected++ % 100 == 0) {
+                System.out.println("[ADMISSION] Koneksi ditolak: " + reason + ", total ditolak " + rejected);
+            }
+            return false;
+        }
+        connections.incrementAndGet();
+        pendingHandshakes.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Socket yang sudah lolos tryAccept() gagal disiapkan sebelum punya sesi.
+     */
+    public static void abandon() {
+        pendingHandshakes.decrementAndGet();
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Tolak cepat: kirim DISCONNECT berisi alasan lalu tutup. Frame sekecil ini
+     * langsung masuk buffer kirim socket baru, jadi thread accept tidak tertahan.
+     */
+    public static void reject(Socket socket) {
+        try (Socket closing = socket) {
+            closing.getOutputStream().write(REJECT_FRAME);
+        } catch (IOException ignored) {
+        }
+    }
+
+    public static void reject(SocketChannel channel) {
+        try (SocketChannel closing = channel) {
+            closing.write(ByteBuffer.wrap(REJECT_FRAME));
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static byte[] rejectFrame() {
+        Message reject = new Message(MessageType.DISCONNECT);
+        reject.setSender("Server");
+        reject.setContent("Server sedang penuh, coba lagi nanti.");
+        return WireFormat.encode(reject);
+    }
+
+    /**
+     * Jatah satu koneksi yang diterima. Dilepas tepat sekali walaupun
+     * registered()/release() terpanggil dari thread berbeda.
+     */
+    static final class Slot {
+        private static final int PENDING = 0;
+        private static final int REGISTERED = 1;
+        private static final int RELEASED = 2;
+
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        // CONNECT diterima: tidak lagi dihitung sebagai handshake
+        void registered() {
+            if (state.compareAndSet(PENDING, REGISTERED)) {
+                pendingHandshakes.decrementAndGet();
+            }
+        }
+
+        void release() {
+            int previous = state.getAndSet(RELEASED);
+            if (previous == PENDING) {
+                pendingHandshakes.decrementAndGet();
+            }
+            if (previous != RELEASED) {
+                connections.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package server;
+
+import common.MessageType;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Frame yang isinya ada di memori: bisa dibaca lewat buffer() (mis. untuk
+ * spool/cache) dan digabung dengan frame lain dalam satu gathering write.
+ */
+public class BufferedFrame extends OutboundFrame {
+
+    private final ByteBuffer data; // isi frame [position, limit), tidak pernah diubah
+
+    public BufferedFrame(MessageType type, byte[] data) {
+        this(type, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * @param data frame lengkap (header + payload). Boleh direct buffer untuk
+     *             chunk yang di-relay apa adanya dari socket pengirim.
+     */
+    public BufferedFrame(MessageType type, ByteBuffer data) {
+        this(type, data, false);
+    }
+
+    BufferedFrame(MessageType type, ByteBuffer data, boolean transferEnd) {
+        super(type, transferEnd);
+        this.data = data;
+    }
+
+    /**
+     * View read-only dengan posisi sendiri; aman dipakai bersamaan oleh banyak writer.
+     */
+    public ByteBuffer buffer() {
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * Buffer heap ditulis langsung dari array-nya; direct buffer disalin lewat
+     * scratch milik writer.
+     */
+    @Override
+    public void writeTo(OutputStream out, byte[] scratch) throws IOException {
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            return;
+        }
+        ByteBuffer view = buffer();
+        while (view.hasRemaining()) {
+            int n = Math.min(scratch.length, view.remaining());
+            view.get(scratch, 0, n);
+            out.write(scratch, 0, n);
+        }
+    }
+
+    @Override
+    public long writeTo(WritableByteChannel target, long offset) throws IOException {
+        ByteBuffer view = buffer();
+        view.position(view.position() + (int) offset);
+        return target.write(view);
+    }
+
+    @Override
+    public int size() {
+        return data.remaining();
+    }
+}
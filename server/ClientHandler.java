@@ -2,125 +2,319 @@ package server;
 
 import common.Message;
 import common.MessageType;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import common.WireFormat;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, ClientSession {
     private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    // Sengaja BufferedOutputStream langsung, bukan DataOutputStream: write() milik
+    // DataOutputStream 'synchronized' sehingga mem-pin virtual thread saat socket penuh.
+    private BufferedOutputStream out;
+    private DataInputStream in;
     private String username;
+    private volatile int sessionId;
+    private volatile int protocolVersion;
+    private volatile long lastReadAt = System.currentTimeMillis();
+    private boolean handshakeDone = false;
+    private final Admission.Slot admission = new Admission.Slot();
+    private final RateLimiter limits = new RateLimiter();
+    private long throttleUntil; // hanya thread pembaca
+
+    // Antrian keluar per klien. sendMessage() hanya enqueue; thread writer
+    // milik klien ini yang menulis ke socket, jadi klien lambat tidak
+    // menahan thread pengirim lain.
+    private final OutboundQueue outbound = new OutboundQueue();
+    private final ThreadFactory writerFactory;
+    private Thread writerThread;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    // Gate baca: tidak null selama pembacaan di-pause (penerima file tertinggal)
+    private volatile CountDownLatch readGate;
 
     public ClientHandler(Socket socket) {
+        this(socket, Thread::new);
+    }
+
+    /**
+     * @param writerFactory pembuat thread writer (platform atau virtual, ikut mode server)
+     */
+    public ClientHandler(Socket socket, ThreadFactory writerFactory) {
         this.socket = socket;
+        this.writerFactory = writerFactory;
+    }
+
+    /**
+     * Setup stream dan tunggu pesan CONNECT pertama (dibatasi timeout).
+     * Dipanggil oleh pool handshake di mode virtual, atau dari run() di mode lama.
+     *
+     * @return true jika klien berhasil terdaftar.
+     */
+    public boolean handshake() {
+        try {
+            // Setup Stream (frame ber-header panjang, lihat WireFormat)
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            socket.setSoTimeout(ServerConfig.HANDSHAKE_TIMEOUT_MS);
+            if (ServerConfig.SOCKET_SEND_BUFFER > 0) {
+                socket.setSendBufferSize(ServerConfig.SOCKET_SEND_BUFFER);
+            }
+
+            Message first = WireFormat.readFrame(in);
+            if (first.getType() != MessageType.CONNECT || first.getSender() == null) {
+                System.out.println("[SERVER] Handshake gagal: pesan pertama bukan CONNECT");
+                closeConnection();
+                return false;
+            }
+            socket.setSoTimeout(0);
+
+            writerThread = writerFactory.newThread(this::writeLoop);
+            writerThread.setName("writer-" + first.getSender());
+            writerThread.start();
+
+            MessageRouter.route(this, first);
+            if (username == null) {
+                return false; // Versi protokol ditolak, writer menutup koneksi
+            }
+            handshakeDone = true;
+            Heartbeat.watch(this);
+            return true;
+        } catch (Exception e) {
+            closeConnection();
+            return false;
+        }
     }
 
     @Override
     public void run() {
-        try {
-            // Setup Stream (Urutan: Output dulu baru Input biar gak macet)
-            this.out = new ObjectOutputStream(socket.getOutputStream());
-            this.in = new ObjectInputStream(socket.getInputStream());
+        if (!handshakeDone && !handshake()) {
+            return;
+        }
 
+        try {
             // Loop membaca pesan dari client
-            while (socket.isConnected()) {
-                // [BLOCKING I/O] Thread diam disini sampai ada pesan masuk
-                Message msg = (Message) in.readObject();
-
-                // --- ROUTING LOGIC BARU (Sesuai Protokol Novran) ---
-                switch (msg.getType()) {
-
-                    // 1. CONNECT
-                    case CONNECT:
-                        this.username = msg.getSender();
-                        ServerController.addUser(this.username, this);
-                        break;
-
-                    // 2. DISCONNECT (User Keluar)
-                    case DISCONNECT:
-                        closeConnection();
-                        break;
-
-                    case USER_LIST_UPDATE:
-
-                        break;
-
-                    // 3. BROADCAST CHAT (Langsung panggil broadcast)
-                    case BROADCAST_CHAT:
-                        System.out.println("[CHAT ALL] " + msg.getSender() + ": " + msg.getContent());
-                        ServerController.broadcastMessage(msg.getSender(), msg.getContent());
-                        break;
-
-                    // 4. PRIVATE CHAT (Langsung panggil private)
-                    case PRIVATE_CHAT:
-                        String targetUser = msg.getRecipient();
-                        System.out.println("[CHAT PRIV] " + msg.getSender() + " -> " + targetUser);
-                        ServerController.sendPrivateMessage(msg.getSender(), targetUser, msg.getContent());
-                        break;
-
-                    // 5. FILE REQUEST (Header File / Pengiriman File Simple)
-                    case FILE_REQUEST:
-                        System.out.println("[FILE START] " + msg.getSender() + " sending '" + msg.getContent() + "' to "
-                                + msg.getRecipient());
-                        ServerController.relayFilePacket(msg);
-                        break;
-
-                    // Isi: Potongan File (Chunk)
-                    case FILE_CHUNK:
-                        ServerController.relayFilePacket(msg);
-                        break;
-
-                    // Footer: Selesai
-                    case FILE_COMPLETE:
-                        System.out.println("[FILE DONE] Transfer " + msg.getContent() + " finished.");
-                        ServerController.relayFilePacket(msg);
-                        break;
-
-                    case FILE_REJECT:
-                        System.out.println(
-                                "[FILE REJECT] " + msg.getSender() + " rejected file from " + msg.getRecipient());
-                        break;
-
-                    // 6. BUZZ (Fitur Getar)
-                    case BUZZ:
-                        ServerController.relayBuzz(msg);
-                        break;
-
-                    case TYPING_START:
-                    case TYPING_STOP:
-                        ServerController.relayTypingStatus(msg);
-                        break;
-                }
+            while (!closed.get()) {
+                awaitThrottle();
+                awaitReadGate();
+
+                // [BLOCKING I/O] Thread diam disini sampai ada pesan masuk.
+                // Frame dibaca utuh ke buffer pinjaman pool yang langsung bisa
+                // diteruskan ke penerima (FILE_CHUNK) tanpa salinan tambahan;
+                // buffer kembali ke pool setelah routing / chunk terkirim.
+                int length = in.readInt();
+                WireFormat.checkLength(length);
+                ByteBuffer frame = FramePool.HEAP.acquire(WireFormat.HEADER_SIZE + length);
+                frame.putInt(0, length);
+                in.readFully(frame.array(), frame.arrayOffset() + WireFormat.HEADER_SIZE, length);
+                lastReadAt = System.currentTimeMillis();
+
+                MessageRouter.routeRaw(this, frame, FramePool.HEAP);
             }
         } catch (Exception e) {
             closeConnection();
         }
     }
 
+    @Override
     public String getUsername() {
         return this.username;
     }
 
-    public void sendMessage(Message msg) {
+    @Override
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    @Override
+    public void setSessionId(int sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    @Override
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    @Override
+    public String getRemoteHost() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public void setUsername(String username) {
+        this.username = username;
+        if (username != null) {
+            admission.registered();
+        }
+    }
+
+    @Override
+    public void sendFrame(OutboundFrame frame) {
+        if (closed.get()) {
+            return;
+        }
+        frame.retain();
+        if (!outbound.offer(frame)) {
+            System.out.println("[SERVER] Klien lambat diputus: " + username);
+            closeConnection();
+        }
+    }
+
+    @Override
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    @Override
+    public void pauseReading() {
+        if (readGate == null) {
+            readGate = new CountDownLatch(1);
+        }
+    }
+
+    @Override
+    public void resumeReading() {
+        CountDownLatch gate = readGate;
+        readGate = null;
+        if (gate != null) {
+            gate.countDown();
+        }
+    }
+
+    @Override
+    public void throttleReading(long delayMs) {
+        throttleUntil = Math.max(throttleUntil, System.currentTimeMillis() + delayMs);
+    }
+
+    @Override
+    public RateLimiter getRateLimiter() {
+        return limits;
+    }
+
+    // Rate limit upload: thread pembaca sendiri yang tidur, pengirim tertahan oleh TCP
+    private void awaitThrottle() throws InterruptedException {
+        long wait = throttleUntil - System.currentTimeMillis();
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    private void awaitReadGate() throws InterruptedException {
+        CountDownLatch gate = readGate;
+        if (gate != null) {
+            // Batas tunggu = batas eviction; setelah itu penerima lambat sudah diputus
+            long timeout = ServerConfig.OUTBOUND_EVICT_AFTER_MS > 0 ? ServerConfig.OUTBOUND_EVICT_AFTER_MS : 10_000;
+            gate.await(timeout, TimeUnit.MILLISECONDS);
+            readGate = null;
+        }
+    }
+
+    /**
+     * Loop thread writer: kuras antrian, flush hanya saat antrian kosong.
+     * Saat ramai, flush ditunda sampai OUTBOUND_FLUSH_DELAY_US supaya pesan yang
+     * datang beruntun (broadcast) keluar dalam satu write/segmen TCP.
+     */
+    private void writeLoop() {
+        byte[] scratch = new byte[64 * 1024];
+        long delayNanos = TimeUnit.MICROSECONDS.toNanos(ServerConfig.OUTBOUND_FLUSH_DELAY_US);
+        long lastFlushAt = 0;
+        long unflushedSince = 0; // 0 = buffer sudah di-flush semua
+        boolean unflushedInteractive = false;
         try {
-            out.writeObject(msg);
-            out.flush();
+            while (!closed.get()) {
+                OutboundFrame frame;
+                if (unflushedSince == 0) {
+                    frame = outbound.take();
+                } else {
+                    long wait = delayNanos - (System.nanoTime() - unflushedSince);
+                    frame = wait > 0 ? outbound.poll(wait, TimeUnit.NANOSECONDS) : outbound.poll();
+                    if (frame == null) {
+                        // Batas tunda habis dan tidak ada pesan baru
+                        out.flush();
+                        lastFlushAt = System.nanoTime();
+                        unflushedSince = 0;
+                        unflushedInteractive = false;
+                        continue;
+                    }
+                }
+                frame.writeTo(out, scratch);
+                frame.release(); // isinya sudah disalin ke buffer stream / socket
+                if (frame.getType() == MessageType.DISCONNECT) {
+                    // DISCONNECT dari server selalu frame terakhir
+                    out.flush();
+                    closeConnection();
+                    return;
+                }
+                long now = System.nanoTime();
+                if (unflushedSince == 0) {
+                    unflushedSince = now;
+                }
+                unflushedInteractive |= !frame.isBulk();
+                // Chat langsung di-flush begitu jalur interaktif habis, tidak
+                // menunggu buffer terisi chunk file berikutnya. Kecuali sedang
+                // ramai: tunggu sebentar, siapa tahu pesan berikutnya segera datang.
+                // Chat yang sudah tertunda sampai batasnya tidak ikut menunggu chunk
+                boolean expired = delayNanos > 0 && now - unflushedSince >= delayNanos;
+                boolean drained = frame.isBulk() ? outbound.isEmpty() : !outbound.hasInteractive();
+                boolean busy = now - lastFlushAt < delayNanos && !expired;
+                if ((drained && !busy) || (expired && unflushedInteractive)) {
+                    out.flush();
+                    lastFlushAt = now;
+                    unflushedSince = 0;
+                    unflushedInteractive = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            // closeConnection() membangunkan writer
         } catch (Exception e) {
-            e.printStackTrace();
+            closeConnection();
         }
     }
 
-    private void closeConnection() {
+    @Override
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    @Override
+    public long getLastReadAt() {
+        return lastReadAt;
+    }
+
+    @Override
+    public void closeConnection() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (writerThread != null) {
+            writerThread.interrupt();
+        }
+        outbound.clear();
+        resumeReading();
+        admission.release();
+
         if (username != null) {
-            ServerController.removeUser(username);
+            ServerController.removeUser(username, this);
         }
 
         try {
             socket.close();
-            in.close();
-            out.close();
+            if (in != null)
+                in.close();
+            if (out != null)
+                out.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,79 @@
+package server;
+
+import common.Message;
+
+/**
+ * Satu koneksi klien yang sudah/akan terdaftar di ServerController.
+ * Diimplementasikan oleh ClientHandler (blocking, thread per klien) dan
+ * NioConnection (engine Selector).
+ */
+public interface ClientSession {
+
+    String getUsername();
+
+    void setUsername(String username);
+
+    /**
+     * Id sesi yang dibagikan server saat CONNECT (0 = belum terdaftar).
+     */
+    int getSessionId();
+
+    void setSessionId(int sessionId);
+
+    /**
+     * Versi protokol hasil negosiasi CONNECT (0 = belum terdaftar). Pesan yang
+     * ditambahkan sesudah MIN_PROTOCOL_VERSION hanya dikirim jika versinya cukup.
+     */
+    int getProtocolVersion();
+
+    void setProtocolVersion(int protocolVersion);
+
+    /**
+     * Alamat IP klien seperti yang terlihat server (untuk transfer file langsung).
+     */
+    String getRemoteHost();
+
+    default void sendMessage(Message msg) {
+        sendFrame(OutboundFrame.of(msg));
+    }
+
+    /**
+     * Kirim frame yang sudah di-encode. Frame yang sama boleh dibagi ke banyak
+     * klien (broadcast): isinya tidak pernah diubah setelah dibuat.
+     */
+    void sendFrame(OutboundFrame frame);
+
+    /**
+     * Antrian keluar klien ini (budget, status over budget, listener drain).
+     */
+    OutboundQueue getOutbound();
+
+    /**
+     * Berhenti membaca dari socket klien ini (backpressure ke pengirim).
+     */
+    void pauseReading();
+
+    void resumeReading();
+
+    /**
+     * Tahan pembacaan socket klien ini selama delayMs (rate limit upload file).
+     * Hanya dipanggil dari thread pembaca sesi ini.
+     */
+    void throttleReading(long delayMs);
+
+    /**
+     * Batas laju pesan dari klien ini (hanya dipakai thread pembacanya).
+     */
+    RateLimiter getRateLimiter();
+
+    void closeConnection();
+
+    boolean isClosed();
+
+    /**
+     * Waktu (currentTimeMillis) frame/byte terakhir benar-benar dibaca dari klien
+     * ini (lihat Heartbeat). Pause/throttle tidak mengubahnya: batasnya jauh di
+     * bawah HEARTBEAT_IDLE_MS, dan data yang tertahan terbaca begitu pause selesai.
+     */
+    long getLastReadAt();
+}
@@ -0,0 +1,310 @@
+package server;
+
+import common.WireFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Cache isi file yang pernah di-relay, dengan kunci SHA-256 isinya.
+ *
+ * Saat upload berjalan, payload chunk ikut ditulis ke file staging (Ingest) dan
+ * di-hash; kalau hasilnya cocok dengan contentHash di FILE_REQUEST, file masuk
+ * cache. FILE_REQUEST berikutnya dengan hash yang sama tidak perlu upload lagi:
+ * setelah pengirim membuktikan memegang isinya (FILE_PROOF, lihat ContentProof),
+ * server menjawab FILE_CACHED dan memutar ulang isinya ke penerima lewat FileSpool. Total ukuran dibatasi, yang paling lama tidak dipakai dibuang.
+ */
+public class ContentCache {
+
+    private static final int HASH_LENGTH = 32;
+    // Ukuran chunk saat memutar ulang isi cache ke spool
+    private static final int REPLAY_CHUNK = 256 * 1024;
+
+    private final Path dir;
+    private final long maxBytes;
+    private final long minFileBytes;
+    private final ExecutorService replayer;
+
+    // hex hash -> ukuran, urutan akses (LRU). Dijaga monitor 'this'
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> ingesting = new HashSet<>();
+    private long totalBytes = 0;
+
+    public ContentCache(String dir, long maxBytes, long minFileBytes) {
+        this.dir = Paths.get(dir);
+        this.maxBytes = maxBytes;
+        this.minFileBytes = minFileBytes;
+        this.replayer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "content-cache-replay");
+            t.setDaemon(true);
+            return t;
+        });
+        loadExisting();
+    }
+
+    /**
+     * Buka isi cache untuk hash ini. Channel dibuka di bawah lock, jadi tetap
+     * terbaca walaupun entry-nya dibuang sesudahnya.
+     *
+     * @return null jika tidak ada (atau ukurannya beda).
+     */
+    public synchronized FileChannel open(byte[] hash, long size) {
+        if (!isValid(hash)) {
+            return null;
+        }
+        String key = HexFormat.of().formatHex(hash);
+        Long cachedSize = entries.get(key);
+        if (cachedSize == null || cachedSize != size) {
+            return null;
+        }
+        try {
+            return FileChannel.open(dir.resolve(key), StandardOpenOption.READ);
+        } catch (IOException e) {
+            // File hilang dari luar: lupakan entry-nya
+            entries.remove(key);
+            totalBytes -= cachedSize;
+            return null;
+        }
+    }
+
+    /**
+     * Mulai menyimpan upload yang baru dimulai.
+     *
+     * @return null jika tidak perlu di-cache (terlalu kecil/besar, sudah ada,
+     *         atau sedang disimpan dari upload lain).
+     */
+    public Ingest beginIngest(byte[] hash, long size) {
+        if (!isValid(hash) || size < minFileBytes || size > maxBytes) {
+            return null;
+        }
+        String key = HexFormat.of().formatHex(hash);
+        synchronized (this) {
+            if (entries.containsKey(key) || !ingesting.add(key)) {
+                return null;
+            }
+        }
+        try {
+            Files.createDirectories(dir);
+            Path staging = Files.createTempFile(dir, key, ".tmp");
+            return new Ingest(key, hash, size, staging);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            System.out.println("[CACHE] Gagal menyiapkan staging: " + e.getMessage());
+            synchronized (this) {
+                ingesting.remove(key);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Putar ulang isi cache ke spool sebagai frame FILE_CHUNK transfer ini, lalu
+     * tutup dengan FILE_COMPLETE. Berjalan di thread replay; channel ditutup di sini.
+     */
+    public void replay(FileChannel source, FileSpool spool, long transferId, ByteBuffer completeFrame,
+            Consumer<IOException> onError) {
+        replayer.execute(() -> {
+            try (FileChannel in = source) {
+                byte[] chunk = new byte[REPLAY_CHUNK];
+                ByteBuffer buf = ByteBuffer.wrap(chunk);
+                ByteArrayOutputStream frame = new ByteArrayOutputStream(REPLAY_CHUNK + 32);
+                long position = 0;
+                long size = in.size();
+                while (position < size && !spool.isClosed()) {
+                    buf.clear();
+                    int n = in.read(buf, position);
+                    if (n < 0) {
+                        throw new IOException("Isi cache terpotong");
+                    }
+                    frame.reset();
+                    WireFormat.writeFileChunk(frame, transferId, chunk, 0, n);
+                    spool.append(ByteBuffer.wrap(frame.toByteArray()));
+                    spool.pumpAll();
+                    position += n;
+                }
+                spool.complete(completeFrame);
+            } catch (IOException e) {
+                onError.accept(e);
+            }
+        });
+    }
+
+    private synchronized void commit(String key, long size) {
+        ingesting.remove(key);
+        if (entries.put(key, size) == null) {
+            totalBytes += size;
+        }
+        evictOverflow();
+    }
+
+    private synchronized void abandon(String key) {
+        ingesting.remove(key);
+    }
+
+    // Buang entry yang paling lama tidak dipakai sampai total muat (lock dipegang)
+    private void evictOverflow() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            totalBytes -= eldest.getValue();
+            try {
+                Files.deleteIfExists(dir.resolve(eldest.getKey()));
+            } catch (IOException ignored) {
+            }
+            System.out.println("[CACHE] Dibuang (LRU): " + eldest.getKey());
+        }
+    }
+
+    /**
+     * Isi cache dari run sebelumnya; urutan LRU awal mengikuti waktu modifikasi.
+     * Staging yang tertinggal dihapus.
+     */
+    private void loadExisting() {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.deleteIfExists(path);
+                } else if (name.length() == HASH_LENGTH * 2) {
+                    files.add(path);
+                }
+            }
+            files.sort(Comparator.comparingLong(p -> p.toFile().lastModified()));
+            synchronized (this) {
+                for (Path path : files) {
+                    long size = Files.size(path);
+                    entries.put(path.getFileName().toString(), size);
+                    totalBytes += size;
+                }
+                evictOverflow();
+            }
+        } catch (IOException e) {
+            System.out.println("[CACHE] Gagal membaca isi cache lama: " + e.getMessage());
+        }
+    }
+
+    private static boolean isValid(byte[] hash) {
+        return hash != null && hash.length == HASH_LENGTH;
+    }
+
+    /**
+     * Satu upload yang sedang disimpan. Dipanggil dari thread pembaca pengirim,
+     * discard() boleh dari thread lain (penolakan/putus).
+     */
+    public class Ingest {
+        private final String key;
+        private final byte[] expectedHash;
+        private final long expectedSize;
+        private final Path staging;
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private long written;
+        private boolean closed;
+
+        private Ingest(String key, byte[] expectedHash, long expectedSize, Path staging)
+                throws IOException, NoSuchAlgorithmException {
+            this.key = key;
+            this.expectedHash = expectedHash;
+            this.expectedSize = expectedSize;
+            this.staging = staging;
+            this.digest = MessageDigest.getInstance("SHA-256");
+            this.channel = FileChannel.open(staging, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Tambahkan data chunk berikutnya (buffer tidak diubah).
+         */
+        public synchronized void write(ByteBuffer chunk) {
+            if (closed) {
+                return;
+            }
+            if (written + chunk.remaining() > expectedSize) {
+                discard(); // lebih besar dari yang diumumkan
+                return;
+            }
+            try {
+                ByteBuffer view = chunk.duplicate();
+                while (view.hasRemaining()) {
+                    written += channel.write(view, written);
+                }
+                digest.update(chunk.duplicate());
+            } catch (IOException e) {
+                System.out.println("[CACHE] Gagal menulis staging: " + e.getMessage());
+                discard();
+            }
+        }
+
+        /**
+         * Upload selesai: masuk cache jika ukuran & hash cocok.
+         */
+        public synchronized void finish() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                channel.close();
+                if (written != expectedSize || !Arrays.equals(digest.digest(), expectedHash)) {
+                    System.out.println("[CACHE] Hash/ukuran tidak cocok, tidak di-cache: " + key);
+                    Files.deleteIfExists(staging);
+                    abandon(key);
+                    return;
+                }
+                Files.move(staging, dir.resolve(key), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                commit(key, expectedSize);
+                System.out.println("[CACHE] Disimpan: " + key + " (" + expectedSize + " bytes)");
+            } catch (IOException e) {
+                System.out.println("[CACHE] Gagal menyimpan: " + e.getMessage());
+                deleteStaging();
+                abandon(key);
+            }
+        }
+
+        public synchronized void discard() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            deleteStaging();
+            abandon(key);
+        }
+
+        private void deleteStaging() {
+            try {
+                Files.deleteIfExists(staging);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
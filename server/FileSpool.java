@@ -0,0 +1,394 @@
+package server;
+
+import common.MessageType;
+import common.WireFormat;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Spool satu transfer ke banyak penerima ("ALL").
+ *
+ * Frame FILE_CHUNK dari pengirim ditulis sekali ke file spool apa adanya
+ * (header + payload), jadi pengirim hanya menunggu disk server, bukan penerima.
+ * Setiap penerima punya kursor sendiri dan dikirimi potongan file spool
+ * (Region) sesuai kreditnya dan ruang di antrian keluarnya. Di engine NIO
+ * potongan ini dikirim dengan FileChannel.transferTo.
+ */
+public class FileSpool {
+
+    // Satu Region paling besar segini (tetap utuh per frame)
+    private static final int MAX_REGION = 1024 * 1024;
+
+    /**
+     * Kursor satu penerima. Field dijaga synchronized(reader).
+     */
+    private static class Reader {
+        final ClientSession session;
+        long position;        // offset file spool yang sudah diantrikan ke penerima
+        long credit;          // kredit dari penerima (byte data chunk, absolut)
+        boolean waitingDrain; // sudah mendaftar drain listener, tunggu antrian turun
+        volatile boolean done;
+        int inFlight;         // Region yang sudah diantrikan tapi belum selesai ditulis (dijaga spool)
+
+        Reader(ClientSession session) {
+            this.session = session;
+        }
+    }
+
+    private final TransferTable.Transfer transfer;
+    private final Path path;
+    private final FileChannel channel;
+    private final long reservedBytes;
+    private final long createdAt = System.currentTimeMillis();
+    private final Map<ClientSession, Reader> readers = new ConcurrentHashMap<>();
+
+    // Indeks frame: offset akhir frame ke-i di file & total data chunk sampai frame itu.
+    // Dijaga synchronized(this).
+    private long[] frameEnds = new long[256];
+    private long[] payloadEnds = new long[256];
+    private int frameCount;
+    private long writePosition;
+    private long payloadBytes;
+    private long grantedToOwner;
+    private volatile boolean complete;
+    private volatile long completedAt;
+    private volatile boolean closed;
+    private int inFlight; // total Region yang belum selesai ditulis; file baru ditutup saat 0
+
+    FileSpool(TransferTable.Transfer transfer, Path path, long reservedBytes, Collection<ClientSession> receivers)
+            throws IOException {
+        this.transfer = transfer;
+        this.path = path;
+        this.reservedBytes = reservedBytes;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        for (ClientSession receiver : receivers) {
+            readers.put(receiver, new Reader(receiver));
+        }
+    }
+
+    public TransferTable.Transfer getTransfer() {
+        return transfer;
+    }
+
+    // --- Sisi pengirim ---
+
+    /**
+     * Kredit awal untuk pengirim: tidak bergantung pada penerima mana pun.
+     */
+    public synchronized long initialCredit() {
+        grantedToOwner = ServerConfig.SPOOL_WINDOW_BYTES;
+        return grantedToOwner;
+    }
+
+    /**
+     * Simpan satu frame FILE_CHUNK apa adanya.
+     *
+     * @return kredit baru untuk pengirim, atau -1 jika belum perlu.
+     */
+    public long append(ByteBuffer frame) throws IOException {
+        int chunkLength = WireFormat.peekChunkLength(frame);
+        synchronized (this) {
+            if (closed || complete) {
+                return -1;
+            }
+            if (writePosition + frame.remaining() > reservedBytes) {
+                throw new IOException("Upload melebihi ukuran yang diumumkan");
+            }
+            write(frame);
+            payloadBytes += chunkLength;
+            index();
+
+            long target = payloadBytes + ServerConfig.SPOOL_WINDOW_BYTES;
+            if (target - grantedToOwner < ServerConfig.SPOOL_WINDOW_BYTES / 2) {
+                return -1;
+            }
+            grantedToOwner = target;
+            return target;
+        }
+    }
+
+    /**
+     * Upload selesai: FILE_COMPLETE ikut disimpan supaya sampai di penerima
+     * tepat setelah chunk terakhir.
+     */
+    public void complete(ByteBuffer completeFrame) throws IOException {
+        synchronized (this) {
+            if (closed || complete) {
+                return;
+            }
+            write(completeFrame);
+            index();
+            complete = true;
+            completedAt = System.currentTimeMillis();
+        }
+        pumpAll();
+    }
+
+    private void write(ByteBuffer frame) throws IOException {
+        ByteBuffer view = frame.duplicate();
+        while (view.hasRemaining()) {
+            writePosition += channel.write(view, writePosition);
+        }
+    }
+
+    private void index() {
+        if (frameCount == frameEnds.length) {
+            frameEnds = Arrays.copyOf(frameEnds, frameCount * 2);
+            payloadEnds = Arrays.copyOf(payloadEnds, frameCount * 2);
+        }
+        frameEnds[frameCount] = writePosition;
+        payloadEnds[frameCount] = payloadBytes;
+        frameCount++;
+    }
+
+    // --- Sisi penerima ---
+
+    public void grant(ClientSession receiver, long credit) {
+        Reader reader = readers.get(receiver);
+        if (reader == null) {
+            return;
+        }
+        synchronized (reader) {
+            if (credit <= reader.credit) {
+                return;
+            }
+            reader.credit = credit;
+        }
+        pump(reader);
+    }
+
+    /**
+     * @return true jika tidak ada lagi penerima yang belum selesai.
+     */
+    public boolean dropReader(ClientSession receiver, boolean disconnected) {
+        Reader reader = readers.remove(receiver);
+        if (reader != null) {
+            reader.done = true;
+            if (disconnected) {
+                // Antrian keluarnya sudah dibuang, Region di sana tidak akan pernah ditulis
+                synchronized (this) {
+                    inFlight -= reader.inFlight;
+                    reader.inFlight = 0;
+                }
+                closeIfIdle();
+            }
+        }
+        return isDrained();
+    }
+
+    public void pumpAll() {
+        for (Reader reader : readers.values()) {
+            pump(reader);
+        }
+    }
+
+    /**
+     * Antrikan potongan spool berikutnya untuk satu penerima selama kredit dan
+     * budget antrian keluarnya masih ada. Serialisasi per penerima supaya
+     * Region masuk antrian berurutan.
+     */
+    private void pump(Reader reader) {
+        synchronized (reader) {
+            while (!reader.done && !closed) {
+                long end = regionEnd(reader);
+                if (end <= reader.position) {
+                    if (complete && reader.position >= writePosition()) {
+                        reader.done = true; // semua frame (termasuk FILE_COMPLETE) sudah diantrikan
+                    }
+                    return;
+                }
+                int length = (int) (end - reader.position);
+                OutboundQueue outbound = reader.session.getOutbound();
+                if (!outbound.hasRoomFor(length)) {
+                    if (!reader.waitingDrain) {
+                        reader.waitingDrain = true;
+                        outbound.addDrainListener(() -> {
+                            synchronized (reader) {
+                                reader.waitingDrain = false;
+                            }
+                            pump(reader);
+                        });
+                    }
+                    return;
+                }
+                Region region = new Region(reader, reader.position, length);
+                synchronized (this) {
+                    reader.inFlight++;
+                    inFlight++;
+                }
+                reader.position = end;
+                reader.session.sendFrame(region);
+            }
+        }
+    }
+
+    /**
+     * Batas akhir Region berikutnya: frame utuh terakhir yang sudah dikredit
+     * penerima, paling jauh MAX_REGION (kecuali satu frame memang lebih besar).
+     */
+    private synchronized long regionEnd(Reader reader) {
+        // Frame pertama yang belum dikirim
+        int first = Arrays.binarySearch(frameEnds, 0, frameCount, reader.position);
+        first = first >= 0 ? first + 1 : -first - 1;
+        long end = reader.position;
+        for (int i = first; i < frameCount; i++) {
+            // credit 0 = penerima belum menerima file; FILE_COMPLETE ikut lolos
+            // begitu chunk terakhir sudah dikredit
+            if (reader.credit == 0 || payloadEnds[i] > reader.credit) {
+                break;
+            }
+            if (i > first && frameEnds[i] - reader.position > MAX_REGION) {
+                break;
+            }
+            end = frameEnds[i];
+        }
+        return end;
+    }
+
+    private synchronized long writePosition() {
+        return writePosition;
+    }
+
+    // --- Retensi ---
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public long getCompletedAt() {
+        return completedAt;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * Upload selesai dan semua penerima sudah mendapat semuanya (atau keluar).
+     */
+    public synchronized boolean isDrained() {
+        if (!complete) {
+            return false;
+        }
+        for (Reader reader : readers.values()) {
+            if (!reader.done || reader.inFlight > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Penerima yang belum selesai (dikabari saat spool dibuang).
+     */
+    public Collection<ClientSession> pendingReceivers() {
+        return readers.values().stream().filter(r -> !r.done).map(r -> r.session).toList();
+    }
+
+    /**
+     * Berhenti mengantrikan Region baru dan hapus file. Channel baru ditutup
+     * setelah Region yang sudah di antrian penerima selesai ditulis.
+     */
+    public void close() {
+        closed = true;
+        deleteFile(); // di Unix file yang sudah di-unlink tetap terbaca lewat channel yang terbuka
+        closeIfIdle();
+    }
+
+    private void regionWritten(Reader reader) {
+        synchronized (this) {
+            if (reader.inFlight > 0) {
+                reader.inFlight--;
+                inFlight--;
+            }
+        }
+        closeIfIdle();
+    }
+
+    private void closeIfIdle() {
+        synchronized (this) {
+            if (!closed || inFlight > 0 || !channel.isOpen()) {
+                return;
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        deleteFile();
+    }
+
+    private void deleteFile() {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Potongan file spool [position, position + length) sebagai frame keluar.
+     * Isinya satu atau lebih frame utuh, jadi aman diselingi frame lain.
+     */
+    class Region extends OutboundFrame {
+        private final Reader reader;
+        private final long position;
+        private final int length;
+
+        Region(Reader reader, long position, int length) {
+            super(MessageType.FILE_CHUNK);
+            this.reader = reader;
+            this.position = position;
+            this.length = length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out, byte[] scratch) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(scratch);
+            long done = 0;
+            while (done < length) {
+                buf.clear().limit((int) Math.min(scratch.length, length - done));
+                int n = channel.read(buf, position + done);
+                if (n < 0) {
+                    throw new IOException("Spool terpotong");
+                }
+                out.write(scratch, 0, n);
+                done += n;
+            }
+            regionWritten(reader);
+        }
+
+        @Override
+        public long writeTo(WritableByteChannel target, long offset) throws IOException {
+            // Zero-copy di engine NIO (sendfile)
+            long n = channel.transferTo(position + offset, length - offset, target);
+            if (offset + n >= length) {
+                regionWritten(reader);
+            }
+            return n;
+        }
+
+        @Override
+        public int size() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool buffer frame masuk, per kelas ukuran pangkat dua (4 KB .. 2 MB).
+ * Dipakai untuk frame yang dibaca dari socket: setelah di-routing (atau setelah
+ * chunk terakhir terkirim ke semua penerima, lihat PooledFrame) buffer kembali
+ * ke sini, jadi relay file tidak membuat byte[]/direct buffer baru per chunk.
+ *
+ * Tiap kelas dibatasi ServerConfig.POOL_BYTES_PER_CLASS; kalau penuh, buffer yang
+ * dikembalikan dibiarkan ke GC. Frame lebih besar dari kelas terbesar tidak di-pool.
+ */
+public final class FramePool {
+
+    private static final int MIN_SHIFT = 12; // 4 KB
+    private static final int MAX_SHIFT = 21; // 2 MB
+
+    // Frame yang dibaca thread pembaca blocking (array) & chunk kecil NIO
+    public static final FramePool HEAP = new FramePool(false, ServerConfig.POOL_BYTES_PER_CLASS);
+    // Chunk besar NIO yang dibaca langsung dari socket lalu ditulis apa adanya
+    public static final FramePool DIRECT = new FramePool(true, ServerConfig.POOL_BYTES_PER_CLASS);
+
+    private final boolean direct;
+    private final ArrayBlockingQueue<ByteBuffer>[] classes;
+
+    @SuppressWarnings("unchecked")
+    private FramePool(boolean direct, long bytesPerClass) {
+        this.direct = direct;
+        this.classes = (ArrayBlockingQueue<ByteBuffer>[]) new ArrayBlockingQueue<?>[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < classes.length; i++) {
+            long slots = bytesPerClass >> (MIN_SHIFT + i);
+            classes[i] = slots > 0 ? new ArrayBlockingQueue<>((int) Math.min(slots, 4096)) : null;
+        }
+    }
+
+    /**
+     * Buffer dengan position 0 dan limit = size (isi lama tidak dibersihkan).
+     */
+    public ByteBuffer acquire(int size) {
+        int index = classOf(size);
+        ByteBuffer buf = index >= 0 && classes[index] != null ? classes[index].poll() : null;
+        if (buf == null) {
+            int capacity = index >= 0 ? 1 << (MIN_SHIFT + index) : size;
+            buf = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        buf.clear().limit(size);
+        return buf;
+    }
+
+    /**
+     * Kembalikan buffer hasil acquire(). Pemanggil tidak boleh memakainya lagi.
+     */
+    public void release(ByteBuffer buf) {
+        int index = classOf(buf.capacity());
+        if (index >= 0 && classes[index] != null && buf.capacity() == 1 << (MIN_SHIFT + index)
+                && buf.isDirect() == direct) {
+            classes[index].offer(buf);
+        }
+    }
+
+    // Indeks kelas terkecil yang muat, -1 jika lebih besar dari kelas terbesar
+    private static int classOf(int size) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1));
+        return shift <= MAX_SHIFT ? shift - MIN_SHIFT : -1;
+    }
+}
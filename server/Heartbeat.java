@@ -0,0 +1,112 @@
+package server;
+
+import common.Message;
+import common.MessageType;
+import common.WireFormat;
+
+/**
+ * Deteksi koneksi mati (half-open: laptop ditutup, NAT timeout) lewat PING/PONG.
+ *
+ * Tiap sesi punya satu Timeout di TimingWheel bersama. Sesi tidak menjadwal
+ * ulang apa pun saat membaca; cukup mencatat waktu baca terakhir. Saat
+ * timeout-nya jatuh, wheel memeriksa waktu itu:
+ * 1. Masih ada frame dalam HEARTBEAT_IDLE_MS: jadwal ulang ke sisa waktu diamnya.
+ * 2. Diam selama HEARTBEAT_IDLE_MS: kirim PING, tunggu HEARTBEAT_TIMEOUT_MS.
+ * 3. Tidak ada frame apa pun sejak PING: koneksi ditutup dan user dihapus.
+ *
+ * Koneksi NIO yang belum CONNECT juga diawasi di sini (mode blocking sudah
+ * memakai SO_TIMEOUT saat handshake). Klien di bawah HEARTBEAT_VERSION tidak
+ * di-PING (tidak mengenal tipe pesannya); koneksinya ditutup setelah diam
+ * HEARTBEAT_IDLE_MS + HEARTBEAT_TIMEOUT_MS tanpa frame apa pun.
+ */
+public final class Heartbeat {
+
+    // Frame PING tidak pernah berubah: satu encode untuk semua sesi
+    private static final OutboundFrame PING = OutboundFrame.of(new Message(MessageType.PING));
+
+    private static final TimingWheel wheel = ServerConfig.HEARTBEAT_IDLE_MS > 0
+            ? new TimingWheel("heartbeat-wheel", ServerConfig.HEARTBEAT_TICK_MS, ServerConfig.HEARTBEAT_WHEEL_SLOTS)
+            : null;
+
+    private Heartbeat() {
+    }
+
+    /**
+     * Mulai mengawasi sesi ini sampai koneksinya ditutup. Dipanggil sekali per koneksi.
+     */
+    public static void watch(ClientSession session) {
+        if (wheel == null) {
+            return;
+        }
+        Watch watch = new Watch(session);
+        wheel.schedule(watch, session.getUsername() == null ? ServerConfig.HANDSHAKE_TIMEOUT_MS
+                : ServerConfig.HEARTBEAT_IDLE_MS);
+    }
+
+    private static final class Watch extends TimingWheel.Timeout {
+        private final ClientSession session;
+        private final long watchedAt = System.currentTimeMillis();
+        private long pingSentAt; // 0 = tidak sedang menunggu balasan
+
+        Watch(ClientSession session) {
+            this.session = session;
+        }
+
+        @Override
+        protected void run() {
+            if (session.isClosed()) {
+                return; // lepas dari wheel
+            }
+            long now = System.currentTimeMillis();
+            long lastRead = session.getLastReadAt();
+
+            // Belum CONNECT (NIO): batas handshake sama dengan mode blocking
+            if (session.getUsername() == null) {
+                long waited = now - watchedAt;
+                if (waited >= ServerConfig.HANDSHAKE_TIMEOUT_MS) {
+                    System.out.println("[HEARTBEAT] Handshake tidak selesai, koneksi ditutup.");
+                    session.closeConnection();
+                } else {
+                    wheel.schedule(this, ServerConfig.HANDSHAKE_TIMEOUT_MS - waited);
+                }
+                return;
+            }
+            if (session.getProtocolVersion() < WireFormat.HEARTBEAT_VERSION) {
+                // Klien lama tidak mengenal PING: cukup batas diam, tanpa PING
+                long limit = ServerConfig.HEARTBEAT_IDLE_MS + ServerConfig.HEARTBEAT_TIMEOUT_MS;
+                long idle = now - lastRead;
+                if (idle >= limit) {
+                    System.out.println("[HEARTBEAT] " + session.getUsername() + " diam " + idle
+                            + " ms (klien lama), koneksi ditutup.");
+                    session.closeConnection();
+                } else {
+                    wheel.schedule(this, limit - idle);
+                }
+                return;
+            }
+
+            if (pingSentAt != 0 && lastRead < pingSentAt) {
+                // PING belum dijawab (dan tidak ada frame lain)
+                long waited = now - pingSentAt;
+                if (waited >= ServerConfig.HEARTBEAT_TIMEOUT_MS) {
+                    System.out.println("[HEARTBEAT] " + session.getUsername() + " tidak merespons "
+                            + (now - lastRead) + " ms, koneksi ditutup.");
+                    session.closeConnection();
+                } else {
+                    wheel.schedule(this, ServerConfig.HEARTBEAT_TIMEOUT_MS - waited);
+                }
+                return;
+            }
+
+            pingSentAt = 0;
+            long idle = now - lastRead;
+            if (idle < ServerConfig.HEARTBEAT_IDLE_MS) {
+                wheel.schedule(this, ServerConfig.HEARTBEAT_IDLE_MS - idle);
+                return;
+            }
+            session.sendFrame(PING);
+            pingSentAt = now;
+            wheel.schedule(this, ServerConfig.HEARTBEAT_TIMEOUT_MS);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package server;
+
+import common.Message;
+import common.MessageType;
+import common.MessageView;
+import common.WireFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Routing pesan masuk berdasarkan MessageType.
+ * Dipakai bersama oleh ClientHandler dan engine NIO supaya perilakunya sama.
+ */
+public class MessageRouter {
+
+    // Satu view per thread pembaca (event loop NIO / thread pembaca per klien)
+    private static final ThreadLocal<MessageView> VIEWS = ThreadLocal.withInitial(MessageView::new);
+
+    /**
+     * Titik masuk untuk frame mentah dari socket (header panjang + payload).
+     * Frame dibaca lewat MessageView: chat, typing, kredit, dan FILE_CHUNK dari
+     * user terdaftar dirutekan tanpa membuat Message. FILE_CHUNK diteruskan apa
+     * adanya (tidak di-decode, tidak disalin, tidak di-encode ulang); tipe lain
+     * di-decode penuh dan lewat route().
+     *
+     * @param frame posisi = awal header; byte setelah frame diabaikan dan posisi
+     *              tidak diubah. Hanya FILE_CHUNK yang dipegang lebih lama dari
+     *              panggilan ini (oleh antrian penerima).
+     * @param pool  asal buffer frame: dikembalikan ke sini setelah routing (chunk:
+     *              setelah terkirim ke semua penerima). Null = buffer milik
+     *              pemanggil; chunk yang tidak berasal dari pool tidak boleh dipakai ulang.
+     */
+    public static void routeRaw(ClientSession session, ByteBuffer frame, FramePool pool) throws IOException {
+        MessageView view = VIEWS.get().wrap(frame);
+        boolean registered = session.getUsername() != null;
+        if (view.getType() == MessageType.FILE_CHUNK && registered) {
+            // Upload melewati batas: chunk tetap diteruskan, socket pengirim ditahan
+            long wait = session.getRateLimiter().throttleFile(WireFormat.HEADER_SIZE + frame.getInt(frame.position()));
+            if (wait > 0) {
+                session.throttleReading(wait);
+            }
+            relayChunk(session, view.getTransferId(), frame, pool);
+            return;
+        }
+
+        try {
+            if (!registered) {
+                routeUnregistered(session, view);
+                return;
+            }
+            if (!session.getRateLimiter().admit(view.getType())) {
+                ServerController.dropRateLimited(session, view.getType());
+                return;
+            }
+            switch (view.getType()) {
+                case BROADCAST_CHAT:
+                    if (ServerConfig.LOG_CHAT) {
+                        System.out.println("[CHAT ALL] " + session.getUsername() + ": " + view.content());
+                    }
+                    ServerController.relayChat(session, view);
+                    break;
+
+                case PRIVATE_CHAT:
+                    if (ServerConfig.LOG_CHAT) {
+                        System.out.println("[CHAT PRIV] " + session.getUsername() + " -> "
+                                + ServerController.describeTarget(view));
+                    }
+                    ServerController.relayChat(session, view);
+                    break;
+
+                case TYPING_START:
+                case TYPING_STOP:
+                    ServerController.relayTypingStatus(session, view);
+                    break;
+
+                case FILE_CREDIT:
+                    ServerController.grantFileCredit(session, view.getTransferId(), view.getFileSize());
+                    break;
+
+                default:
+                    route(session, view.toMessage());
+                    break;
+            }
+        } finally {
+            if (pool != null) {
+                pool.release(frame);
+            }
+        }
+    }
+
+    /**
+     * Sesi yang belum CONNECT belum punya identitas maupun batas laju: selain
+     * CONNECT, PONG, dan DISCONNECT, frame apa pun menutup koneksinya (bukan
+     * di-relay dengan nama pengirim pilihan klien).
+     */
+    private static void routeUnregistered(ClientSession session, MessageView view) {
+        switch (view.getType()) {
+            case CONNECT:
+                route(session, view.toMessage());
+                break;
+
+            case PONG:
+                break;
+
+            case DISCONNECT:
+                session.closeConnection();
+                break;
+
+            default:
+                System.out.println("[SERVER] " + view.getType() + " sebelum CONNECT, koneksi ditutup.");
+                session.closeConnection();
+                break;
+        }
+    }
+
+    // Satu referensi milik router selama relay; tiap antrian penerima memegang referensinya sendiri
+    private static void relayChunk(ClientSession session, long transferId, ByteBuffer frame, FramePool pool) {
+        BufferedFrame chunk = pool != null
+                ? new PooledFrame(MessageType.FILE_CHUNK, frame, pool)
+                : new BufferedFrame(MessageType.FILE_CHUNK,
+                        frame.slice(frame.position(), WireFormat.HEADER_SIZE + frame.getInt(frame.position())));
+        try {
+            ServerController.relayFileChunk(session, transferId, chunk);
+        } finally {
+            chunk.release();
+        }
+    }
+
+    public static void route(ClientSession session, Message msg) {
+        // Pengirim selalu diambil dari sesi, bukan dari isi pesan (FILE_CHUNK dari
+        // klien tidak membawa sender, dan mencegah klien menyamar jadi user lain)
+        if (msg.getType() != MessageType.CONNECT && session.getUsername() != null) {
+            msg.setSender(session.getUsername());
+            msg.setSenderId(session.getSessionId());
+        }
+
+        // --- ROUTING LOGIC BARU (Sesuai Protokol Novran) ---
+        switch (msg.getType()) {
+
+            // 1. CONNECT
+            case CONNECT:
+                if (session.getUsername() != null) {
+                    // Satu sesi satu nama & id: CONNECT ulang tidak mendaftar lagi
+                    System.out.println("[SERVER] CONNECT ulang dari " + session.getUsername() + " diabaikan.");
+                    break;
+                }
+                if (msg.getSender() == null || msg.getSender().isEmpty()) {
+                    rejectConnect(session, "Nama user kosong.");
+                    break;
+                }
+                int version = WireFormat.negotiate(msg.getProtocolVersion());
+                if (version < 0) {
+                    rejectConnect(session, "Versi protokol " + msg.getProtocolVersion() + " tidak didukung.");
+                    break;
+                }
+
+                // Balas CONNECT dengan versi hasil negosiasi (dan id sesi klien ini,
+                // di recipientId) sebelum user list dikirim
+                session.setProtocolVersion(version);
+                ServerController.assignSessionId(session);
+                Message ack = new Message(MessageType.CONNECT);
+                ack.setSender("Server");
+                ack.setProtocolVersion(version);
+                ack.setRecipientId(session.getSessionId());
+                if (!ServerController.addUser(msg.getSender(), session, ack)) {
+                    System.out.println("[SERVER] Nama " + msg.getSender() + " sedang dipakai, CONNECT ditolak.");
+                    rejectConnect(session, "Nama " + msg.getSender() + " sedang dipakai.");
+                }
+                break;
+
+            // Heartbeat: PING dijawab, PONG cukup tercatat sebagai frame masuk
+            case PING:
+                session.sendMessage(new Message(MessageType.PONG));
+                break;
+
+            case PONG:
+                break;
+
+            // 2. DISCONNECT (User Keluar)
+            case DISCONNECT:
+                session.closeConnection();
+                break;
+
+            // Klien minta snapshot ulang (versi presence-nya tertinggal)
+            case USER_LIST_UPDATE:
+                ServerController.sendUserSnapshot(session);
+                break;
+
+            // 3. BROADCAST CHAT (Langsung panggil broadcast)
+            case BROADCAST_CHAT:
+                if (ServerConfig.LOG_CHAT) {
+                    System.out.println("[CHAT ALL] " + msg.getSender() + ": " + msg.getContent());
+                }
+                ServerController.broadcastChat(session, msg.getContent());
+                break;
+
+            // 4. PRIVATE CHAT (Langsung panggil private)
+            case PRIVATE_CHAT:
+                if (ServerConfig.LOG_CHAT) {
+                    System.out.println("[CHAT PRIV] " + msg.getSender() + " -> " + ServerController.describeTarget(msg));
+                }
+                ServerController.sendPrivateMessage(session, msg);
+                break;
+
+            // 5. FILE REQUEST (Header File / Pengiriman File Simple)
+            case FILE_REQUEST:
+                System.out.println("[FILE START] " + msg.getSender() + " sending '" + msg.getContent() + "' to "
+                        + ServerController.describeTarget(msg) + " (#" + msg.getTransferId() + ")");
+                ServerController.beginFileTransfer(session, msg);
+                break;
+
+            // Isi: Potongan File (Chunk)
+            case FILE_CHUNK:
+                ServerController.relayFileChunk(session, msg.getTransferId(), OutboundFrame.of(msg));
+                break;
+
+            // Footer: Selesai
+            case FILE_COMPLETE:
+                System.out.println("[FILE DONE] Transfer " + msg.getContent() + " finished.");
+                ServerController.completeFileTransfer(session, msg);
+                break;
+
+            case FILE_REJECT:
+                System.out.println(
+                        "[FILE REJECT] " + msg.getSender() + " rejected transfer #" + msg.getTransferId());
+                ServerController.rejectFileTransfer(session, msg);
+                break;
+
+            // Flow control: kredit dari penerima untuk pengirim
+            case FILE_CREDIT:
+                ServerController.grantFileCredit(session, msg);
+                break;
+
+            // Lanjutkan transfer dari .part yang sudah ada
+            case FILE_RESUME:
+                ServerController.resumeFileTransfer(session, msg);
+                break;
+
+            // Delta dari versi lama milik penerima
+            case FILE_DELTA:
+                ServerController.deltaFileTransfer(session, msg);
+                break;
+
+            // Jawaban tantangan cache hit (bukti pengirim memegang isi file)
+            case FILE_PROOF:
+                ServerController.proveFileContent(session, msg);
+                break;
+
+            // Koneksi langsung antar klien (server hanya perantara alamat & token)
+            case FILE_P2P:
+                ServerController.directFileTransfer(session, msg);
+                break;
+
+            // 6. BUZZ (Fitur Getar)
+            case BUZZ:
+                ServerController.relayBuzz(session, msg);
+                break;
+
+            case TYPING_START:
+            case TYPING_STOP:
+                ServerController.relayTypingStatus(session, msg);
+                break;
+        }
+    }
+
+    // Handshake ditolak: writer menutup koneksi setelah DISCONNECT ini
+    private static void rejectConnect(ClientSession session, String reason) {
+        Message reject = new Message(MessageType.DISCONNECT);
+        reject.setSender("Server");
+        reject.setContent(reason);
+        session.sendMessage(reject);
+    }
+}
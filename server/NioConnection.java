@@ -0,0 +1,391 @@
+package server;
+
+import common.Message;
+import common.MessageType;
+import common.WireFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * State satu koneksi di engine NIO: buffer baca (dipakai ulang, dibesarkan
+ * hanya jika ada frame yang lebih besar) dan antrian frame keluar.
+ */
+public class NioConnection implements ClientSession {
+
+    private static final int INITIAL_READ_BUFFER = 8 * 1024;
+    // FILE_CHUNK sebesar ini atau lebih dibaca langsung ke buffer relay sendiri
+    private static final int PASS_THROUGH_MIN = 16 * 1024;
+
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+    private ByteBuffer passThrough; // frame FILE_CHUNK besar yang sedang diisi dari socket
+    private boolean greeted;        // frame pertama (harus CONNECT) sudah diterima
+    private final OutboundQueue outbound = new OutboundQueue();
+    // State penulisan, hanya disentuh thread loop. Frame ber-buffer dikumpulkan lalu
+    // ditulis dengan satu gathering write (bukan satu syscall per frame); Region
+    // spool ditulis sendiri lewat transferTo
+    private final OutboundFrame[] batch = new OutboundFrame[Math.max(1, ServerConfig.OUTBOUND_GATHER_FRAMES)];
+    private final ByteBuffer[] views = new ByteBuffer[batch.length];
+    private int batchStart;
+    private int batchEnd;
+    private OutboundFrame held;    // Region yang menunggu batch di depannya selesai
+    private OutboundFrame writing; // Region yang sedang ditulis sebagian
+    private long writingOffset;
+    private final AtomicBoolean writeArmed = new AtomicBoolean(false);
+    // Alasan berhenti membaca (hanya thread loop): backpressure penerima file dan
+    // rate limit upload. OP_READ menyala lagi hanya jika tidak ada yang aktif
+    private boolean backpressured;
+    private boolean throttled;
+    private int pauseGeneration;    // timer batas pause milik pause yang sudah selesai diabaikan
+    private int throttleGeneration; // timer throttle yang sudah digantikan diabaikan
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private volatile String username;
+    private volatile int sessionId;
+    private volatile int protocolVersion;
+    private volatile long lastReadAt = System.currentTimeMillis();
+    private final Admission.Slot admission = new Admission.Slot();
+    private final RateLimiter limits = new RateLimiter();
+
+    public NioConnection(NioEventLoop loop, SocketChannel channel, SelectionKey key) {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+    }
+
+    // --- Baca (selalu di thread loop) ---
+
+    void onReadable() {
+        try {
+            // Sedang mengisi frame FILE_CHUNK besar: baca langsung ke buffer miliknya
+            if (passThrough != null) {
+                if (channel.read(passThrough) < 0) {
+                    closeConnection();
+                    return;
+                }
+                lastReadAt = System.currentTimeMillis();
+                if (passThrough.hasRemaining()) {
+                    return;
+                }
+                ByteBuffer frame = passThrough;
+                passThrough = null;
+                frame.flip();
+                MessageRouter.routeRaw(this, frame, FramePool.DIRECT);
+                if (closed.get()) {
+                    return;
+                }
+            }
+
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                closeConnection();
+                return;
+            }
+            if (n > 0) {
+                lastReadAt = System.currentTimeMillis();
+            }
+
+            readBuffer.flip();
+            while (readBuffer.remaining() > WireFormat.HEADER_SIZE) {
+                int start = readBuffer.position();
+                int length = readBuffer.getInt(start);
+                WireFormat.checkLength(length);
+                MessageType type = WireFormat.peekType(readBuffer);
+                if (!greeted) {
+                    // Sama seperti ClientHandler.handshake(): pesan pertama wajib CONNECT
+                    if (type != MessageType.CONNECT) {
+                        System.out.println("[SERVER] Handshake gagal: pesan pertama bukan CONNECT");
+                        closeConnection();
+                        return;
+                    }
+                    greeted = true;
+                }
+                boolean chunk = type == MessageType.FILE_CHUNK;
+
+                int frameSize = WireFormat.HEADER_SIZE + length;
+                if (readBuffer.remaining() < frameSize) {
+                    if (chunk && frameSize >= PASS_THROUGH_MIN) {
+                        // Sisa frame dibaca langsung ke direct buffer yang nantinya
+                        // ditulis apa adanya ke socket penerima
+                        passThrough = FramePool.DIRECT.acquire(frameSize);
+                        passThrough.put(readBuffer);
+                        readBuffer.clear();
+                        return;
+                    }
+                    // Frame belum lengkap; besarkan buffer kalau memang tidak muat
+                    if (readBuffer.capacity() < frameSize) {
+                        ByteBuffer bigger = ByteBuffer.allocate(frameSize);
+                        bigger.put(readBuffer);
+                        readBuffer = bigger;
+                        return;
+                    }
+                    break;
+                }
+
+                if (chunk) {
+                    // readBuffer dipakai ulang, jadi chunk kecil yang ikut antrian penerima
+                    // disalin ke buffer pinjaman pool
+                    ByteBuffer frame = FramePool.HEAP.acquire(frameSize);
+                    frame.put(0, readBuffer, start, frameSize);
+                    MessageRouter.routeRaw(this, frame, FramePool.HEAP);
+                } else {
+                    // Di-decode langsung di tempat (selain chunk, routeRaw tidak menyimpan frame)
+                    MessageRouter.routeRaw(this, readBuffer, null);
+                }
+                readBuffer.position(start + frameSize);
+
+                if (closed.get()) {
+                    return;
+                }
+            }
+            readBuffer.compact();
+        } catch (IOException e) {
+            closeConnection();
+        }
+    }
+
+    // --- Tulis ---
+
+    @Override
+    public void sendFrame(OutboundFrame frame) {
+        if (closed.get()) {
+            return;
+        }
+        frame.retain();
+        if (!outbound.offer(frame)) {
+            System.out.println("[SERVER] Klien lambat diputus: " + username);
+            closeConnection();
+            return;
+        }
+        armWrite();
+    }
+
+    @Override
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    @Override
+    public void pauseReading() {
+        loop.execute(() -> {
+            int generation = ++pauseGeneration;
+            backpressured = true;
+            updateReadInterest();
+            // Sama seperti ClientHandler: jangan menunggu lebih lama dari batas eviction
+            long timeout = ServerConfig.OUTBOUND_EVICT_AFTER_MS > 0 ? ServerConfig.OUTBOUND_EVICT_AFTER_MS : 10_000;
+            loop.schedule(() -> {
+                if (pauseGeneration == generation) {
+                    endPause();
+                }
+            }, timeout);
+        });
+    }
+
+    @Override
+    public void resumeReading() {
+        loop.execute(this::endPause);
+    }
+
+    // lastReadAt sengaja tidak disentuh: selama pause memang tidak ada yang dibaca
+    private void endPause() {
+        pauseGeneration++;
+        backpressured = false;
+        updateReadInterest();
+    }
+
+    @Override
+    public void throttleReading(long delayMs) {
+        loop.execute(() -> {
+            int generation = ++throttleGeneration;
+            throttled = true;
+            updateReadInterest();
+            loop.schedule(() -> {
+                if (throttleGeneration == generation) {
+                    throttled = false;
+                    updateReadInterest();
+                }
+            }, delayMs);
+        });
+    }
+
+    @Override
+    public RateLimiter getRateLimiter() {
+        return limits;
+    }
+
+    private void updateReadInterest() {
+        if (key.isValid()) {
+            boolean read = !backpressured && !throttled;
+            key.interestOps(read ? key.interestOps() | SelectionKey.OP_READ
+                    : key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private void armWrite() {
+        if (writeArmed.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            });
+        }
+    }
+
+    void onWritable() {
+        try {
+            while (true) {
+                if (writing != null) {
+                    writingOffset += writing.writeTo(channel, writingOffset);
+                    if (writingOffset < writing.size()) {
+                        return; // Socket penuh, tunggu OP_WRITE berikutnya
+                    }
+                    writing.release();
+                    writing = null;
+                    continue;
+                }
+                if (batchStart == batchEnd && !fillBatch()) {
+                    break;
+                }
+                if (writing != null) {
+                    continue; // fillBatch mengambil Region
+                }
+                channel.write(views, batchStart, batchEnd - batchStart);
+                while (batchStart < batchEnd && !views[batchStart].hasRemaining()) {
+                    OutboundFrame done = batch[batchStart];
+                    batch[batchStart] = null;
+                    views[batchStart] = null;
+                    batchStart++;
+                    done.release();
+                    if (done.getType() == MessageType.DISCONNECT) {
+                        // DISCONNECT dari server selalu frame terakhir
+                        closeConnection();
+                        return;
+                    }
+                }
+                if (batchStart < batchEnd) {
+                    return; // Socket penuh, tunggu OP_WRITE berikutnya
+                }
+            }
+
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            writeArmed.set(false);
+            // Ada yang masuk antrian di sela-sela? nyalakan lagi
+            if (!outbound.isEmpty()) {
+                armWrite();
+            }
+        } catch (IOException e) {
+            closeConnection();
+        }
+    }
+
+    /**
+     * Ambil frame dari antrian sampai batas gather. Region di depan antrian
+     * langsung jadi 'writing'; Region di tengah ditahan sampai batch habis.
+     *
+     * @return false jika tidak ada yang perlu ditulis.
+     */
+    private boolean fillBatch() {
+        batchStart = 0;
+        batchEnd = 0;
+        long bytes = 0;
+        while (batchEnd < batch.length && bytes < ServerConfig.OUTBOUND_GATHER_BYTES) {
+            OutboundFrame frame = held != null ? held : outbound.poll();
+            held = null;
+            if (frame == null) {
+                break;
+            }
+            if (!(frame instanceof BufferedFrame buffered)) {
+                if (batchEnd == 0) {
+                    writing = frame;
+                    writingOffset = 0;
+                    return true;
+                }
+                held = frame;
+                break;
+            }
+            batch[batchEnd] = frame;
+            views[batchEnd] = buffered.buffer();
+            batchEnd++;
+            bytes += frame.size();
+            if (frame.getType() == MessageType.DISCONNECT) {
+                break;
+            }
+        }
+        return batchEnd > 0;
+    }
+
+    // --- ClientSession ---
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    @Override
+    public void setSessionId(int sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    @Override
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    @Override
+    public String getRemoteHost() {
+        return channel.socket().getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public void setUsername(String username) {
+        this.username = username;
+        if (username != null) {
+            admission.registered();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    @Override
+    public long getLastReadAt() {
+        return lastReadAt;
+    }
+
+    @Override
+    public void closeConnection() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (username != null) {
+            ServerController.removeUser(username, this);
+        }
+        loop.execute(() -> {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        });
+        outbound.clear();
+        admission.release();
+    }
+}
@@ -0,0 +1,143 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Satu thread + satu Selector. Semua operasi pada channel milik loop ini
+ * (register, ubah interestOps, tutup) dijalankan di thread loop lewat execute().
+ */
+public class NioEventLoop extends Thread {
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(); // hanya diakses thread loop
+    private volatile boolean running = true;
+
+    private static class Timer implements Comparable<Timer> {
+        final long deadline;
+        final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline, other.deadline);
+        }
+    }
+
+    public NioEventLoop(String name) throws IOException {
+        super(name);
+        this.selector = Selector.open();
+    }
+
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                if (ServerConfig.SOCKET_SEND_BUFFER > 0) {
+                    channel.socket().setSendBufferSize(ServerConfig.SOCKET_SEND_BUFFER);
+                }
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioConnection conn = new NioConnection(this, channel, key);
+                key.attach(conn);
+                Heartbeat.watch(conn); // juga batas waktu CONNECT pertama
+                System.out.println("[SERVER] Ada klien baru masuk! (" + getName() + ")");
+            } catch (IOException e) {
+                Admission.abandon();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    /**
+     * Jalankan task di thread loop. Kalau dipanggil dari loop itu sendiri, langsung jalan.
+     */
+    public void execute(Runnable task) {
+        if (Thread.currentThread() == this) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Jalankan task di thread loop setelah delayMs.
+     */
+    public void schedule(Runnable task, long delayMs) {
+        long deadline = System.currentTimeMillis() + delayMs;
+        execute(() -> timers.add(new Timer(deadline, task)));
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Timer next = timers.peek();
+                if (next == null) {
+                    selector.select();
+                } else {
+                    selector.select(Math.max(1, next.deadline - System.currentTimeMillis()));
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                long now = System.currentTimeMillis();
+                while (!timers.isEmpty() && timers.peek().deadline <= now) {
+                    timers.poll().task.run();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    NioConnection conn = (NioConnection) key.attachment();
+                    if (!key.isValid() || conn == null) {
+                        continue;
+                    }
+                    if (key.isReadable()) {
+                        conn.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        conn.onWritable();
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Tutup semua koneksi saat loop berhenti
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioConnection) {
+                ((NioConnection) key.attachment()).closeConnection();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
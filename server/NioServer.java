@@ -0,0 +1,48 @@
+package server;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Engine server alternatif berbasis ServerSocketChannel + Selector.
+ * Satu thread acceptor, lalu beberapa event loop (default = jumlah core)
+ * yang masing-masing memegang banyak koneksi sekaligus.
+ */
+public class NioServer {
+
+    public static void start(int port, int loopCount) {
+        NioEventLoop[] loops = new NioEventLoop[loopCount];
+        try {
+            for (int i = 0; i < loopCount; i++) {
+                loops[i] = new NioEventLoop("nio-loop-" + i);
+                loops[i].start();
+            }
+
+            try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+                serverChannel.bind(new InetSocketAddress(port));
+                System.out.println("[SERVER] Sedang berjalan di port " + port + " (NIO, " + loopCount + " event loop)...");
+
+                int next = 0;
+                while (true) {
+                    // Accept tetap blocking di thread ini, lalu dibagi round-robin ke event loop
+                    SocketChannel channel = serverChannel.accept();
+                    if (!Admission.tryAccept()) {
+                        Admission.reject(channel);
+                        continue;
+                    }
+                    loops[next].register(channel);
+                    next = (next + 1) % loopCount;
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            for (NioEventLoop loop : loops) {
+                if (loop != null) {
+                    loop.shutdown();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package server;
+
+import common.Message;
+import common.MessageType;
+import common.WireFormat;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Satu frame yang sudah di-encode dan siap ditulis ke socket.
+ * Tipe pesan disimpan supaya antrian bisa memilih frame mana yang boleh dibuang.
+ *
+ * Cara menulis diserahkan ke subclass: BufferedFrame (isi di memori, bisa
+ * digabung dalam satu gathering write) atau FileSpool.Region (potongan file
+ * spool, ditulis lewat transferTo).
+ */
+public abstract class OutboundFrame {
+
+    private final MessageType type;
+    private final boolean transferEnd; // FILE_REJECT ke penerima: ikut jalur bulk (lihat isBulk)
+
+    protected OutboundFrame(MessageType type) {
+        this(type, false);
+    }
+
+    protected OutboundFrame(MessageType type, boolean transferEnd) {
+        this.type = type;
+        this.transferEnd = transferEnd;
+    }
+
+    public static BufferedFrame of(Message msg) {
+        return new BufferedFrame(msg.getType(), WireFormat.encode(msg));
+    }
+
+    /**
+     * Frame yang mengakhiri transfer di sisi penerima (FILE_REJECT dari server).
+     * Masuk jalur bulk di belakang FILE_REQUEST/chunk transfer itu yang mungkin
+     * masih mengantri; di jalur interaktif ia bisa mendahului FILE_REQUEST-nya.
+     */
+    public static BufferedFrame ofTransferEnd(Message msg) {
+        return new BufferedFrame(msg.getType(), ByteBuffer.wrap(WireFormat.encode(msg)), true);
+    }
+
+    public MessageType getType() {
+        return type;
+    }
+
+    /**
+     * Tulis seluruh frame ke stream blocking (writer ClientHandler).
+     *
+     * @param scratch buffer milik writer untuk isi yang tidak ada di heap.
+     */
+    public abstract void writeTo(OutputStream out, byte[] scratch) throws IOException;
+
+    /**
+     * Tulis sebagian ke channel non-blocking (engine NIO), mulai dari byte ke-offset
+     * frame ini.
+     *
+     * @return jumlah byte yang tertulis (bisa 0 jika socket penuh).
+     */
+    public abstract long writeTo(WritableByteChannel target, long offset) throws IOException;
+
+    public abstract int size();
+
+    /**
+     * Antrian penerima ikut memegang frame ini (lihat PooledFrame). Frame biasa
+     * cukup diserahkan ke GC, jadi retain/release tidak melakukan apa-apa.
+     */
+    public void retain() {
+    }
+
+    /**
+     * Pemegang selesai memakai frame ini (sudah ditulis, dibuang, atau antrian dibersihkan).
+     */
+    public void release() {
+    }
+
+    /**
+     * Sinyal sesaat yang aman dibuang saat penerima tertinggal.
+     * Delta presence sengaja tidak termasuk: klien butuh urutan versinya utuh.
+     */
+    public boolean isEphemeral() {
+        return type == MessageType.TYPING_START || type == MessageType.TYPING_STOP
+                || type == MessageType.BUZZ;
+    }
+
+    /**
+     * Data file: masuk jalur bulk di OutboundQueue, didahului chat & kontrol.
+     * FILE_REQUEST/FILE_COMPLETE (dan pembatalan ke penerima, ofTransferEnd) ikut
+     * jalur ini supaya urutannya terhadap chunk transfer yang sama tetap terjaga.
+     */
+    public boolean isBulk() {
+        return transferEnd || type == MessageType.FILE_REQUEST || type == MessageType.FILE_CHUNK
+                || type == MessageType.FILE_COMPLETE;
+    }
+}
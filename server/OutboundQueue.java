@@ -0,0 +1,318 @@
+package server;
+
+import common.MessageType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Antrian keluar satu klien dengan batas byte & jumlah pesan.
+ *
+ * Ada dua jalur: interaktif (kontrol, presence, chat) dan bulk (data file).
+ * Jalur interaktif selalu didahulukan di batas frame, kecuali jalur bulk sudah
+ * tertinggal dari porsi minimumnya (bulkSharePercent dari byte yang terkirim
+ * selama kedua jalur sama-sama berisi), jadi transfer file tidak pernah mati total.
+ *
+ * Saat melewati batas:
+ * 1. Frame sesaat (typing, buzz, user list lama) dibuang dari yang paling tua.
+ * 2. Pengirim file ke klien ini bisa di-pause (lihat addDrainListener).
+ * 3. Jika tetap over budget lebih lama dari evictAfterMs, offer() mengembalikan
+ * false dan pemanggil wajib memutus klien ini.
+ */
+public class OutboundQueue {
+
+    private final ArrayDeque<OutboundFrame> interactive = new ArrayDeque<>();
+    private final ArrayDeque<OutboundFrame> bulk = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final List<Runnable> drainListeners = new ArrayList<>();
+
+    private final long maxBytes;
+    private final int maxMessages;
+    private final long evictAfterMs;
+    private final boolean dropEphemeral;
+    private final int bulkSharePercent;
+
+    private long queuedBytes = 0;
+    private long overBudgetSince = 0;
+
+    // Byte yang "menjadi hak" jalur bulk saat bersaing dengan jalur interaktif.
+    // > 0: bulk boleh menyela; negatif: bulk baru saja mengambil jatahnya.
+    private long bulkDeficit = 0;
+
+    public OutboundQueue() {
+        this(ServerConfig.OUTBOUND_MAX_BYTES, ServerConfig.OUTBOUND_MAX_MESSAGES,
+                ServerConfig.OUTBOUND_EVICT_AFTER_MS, ServerConfig.OUTBOUND_DROP_EPHEMERAL,
+                ServerConfig.OUTBOUND_BULK_SHARE_PERCENT);
+    }
+
+    public OutboundQueue(long maxBytes, int maxMessages, long evictAfterMs, boolean dropEphemeral,
+            int bulkSharePercent) {
+        this.maxBytes = maxBytes;
+        this.maxMessages = maxMessages;
+        this.evictAfterMs = evictAfterMs;
+        this.dropEphemeral = dropEphemeral;
+        this.bulkSharePercent = Math.max(0, Math.min(99, bulkSharePercent));
+    }
+
+    /**
+     * Antrian mengambil alih satu referensi frame (OutboundFrame.retain oleh
+     * pemanggil): frame yang dibuang antrian di-release di sini, frame yang
+     * diambil writer di-release writer setelah ditulis.
+     *
+     * @return false jika klien harus diputus (terlalu lama over budget).
+     */
+    public boolean offer(OutboundFrame frame) {
+        lock.lock();
+        try {
+            // User list selalu menggantikan versi lama yang belum terkirim
+            if (frame.getType() == MessageType.USER_LIST_UPDATE) {
+                removeQueued(MessageType.USER_LIST_UPDATE);
+            }
+
+            if (isOverBudget(frame.size()) && dropEphemeral) {
+                dropOldestEphemeral(frame.size());
+                if (isOverBudget(frame.size()) && frame.isEphemeral()) {
+                    frame.release();
+                    return checkEviction(); // frame baru ikut dibuang
+                }
+            }
+
+            (frame.isBulk() ? bulk : interactive).addLast(frame);
+            queuedBytes += frame.size();
+            notEmpty.signal();
+            return checkEviction();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocking: dipakai thread writer ClientHandler.
+     */
+    public OutboundFrame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (isEmptyLocked()) {
+                notEmpty.await();
+            }
+            return removeHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Non-blocking: dipakai event loop NIO. Null jika kosong.
+     */
+    public OutboundFrame poll() {
+        lock.lock();
+        try {
+            return isEmptyLocked() ? null : removeHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public OutboundFrame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = unit.toNanos(timeout);
+            while (isEmptyLocked()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return removeHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return isEmptyLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Masih muat satu frame sebesar ini tanpa melewati budget (dipakai spool
+     * supaya pembaca lambat tidak pernah dianggap over budget lalu diputus).
+     */
+    public boolean hasRoomFor(int bytes) {
+        lock.lock();
+        try {
+            return !isOverBudget(bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Masih ada frame interaktif yang menunggu (writer menunda flush sampai habis).
+     */
+    public boolean hasInteractive() {
+        lock.lock();
+        try {
+            return !interactive.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isOverBudget() {
+        lock.lock();
+        try {
+            return isOverBudget(0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Listener dipanggil sekali ketika antrian turun di bawah separuh budget.
+     * Dipakai untuk melanjutkan pengirim file yang sedang di-pause.
+     */
+    public void addDrainListener(Runnable listener) {
+        boolean runNow;
+        lock.lock();
+        try {
+            runNow = !isAboveLowWater();
+            if (!runNow) {
+                drainListeners.add(listener);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (runNow) {
+            listener.run();
+        }
+    }
+
+    public void clear() {
+        List<Runnable> listeners;
+        lock.lock();
+        try {
+            interactive.forEach(OutboundFrame::release);
+            bulk.forEach(OutboundFrame::release);
+            interactive.clear();
+            bulk.clear();
+            queuedBytes = 0;
+            bulkDeficit = 0;
+            listeners = takeDrainListeners();
+        } finally {
+            lock.unlock();
+        }
+        listeners.forEach(Runnable::run);
+    }
+
+    // --- Helper internal (lock sudah dipegang) ---
+
+    private boolean isEmptyLocked() {
+        return interactive.isEmpty() && bulk.isEmpty();
+    }
+
+    private int queuedFrames() {
+        return interactive.size() + bulk.size();
+    }
+
+    /**
+     * Pilih frame berikutnya: interaktif dulu, bulk jika jalur interaktif kosong
+     * atau bulk sedang punya jatah (deficit > 0).
+     */
+    private OutboundFrame pollNext() {
+        if (bulk.isEmpty()) {
+            bulkDeficit = 0;
+            return interactive.pollFirst();
+        }
+        if (interactive.isEmpty()) {
+            return bulk.pollFirst(); // tidak ada yang bersaing, jatah tidak berubah
+        }
+        if (bulkDeficit > 0) {
+            OutboundFrame frame = bulk.pollFirst();
+            bulkDeficit -= frame.size();
+            return frame;
+        }
+        OutboundFrame frame = interactive.pollFirst();
+        bulkDeficit += (long) frame.size() * bulkSharePercent / (100 - bulkSharePercent);
+        return frame;
+    }
+
+    private OutboundFrame removeHead() {
+        OutboundFrame frame = pollNext();
+        queuedBytes -= frame.size();
+
+        if (!isOverBudget(0)) {
+            overBudgetSince = 0;
+        }
+        if (!drainListeners.isEmpty() && !isAboveLowWater()) {
+            // Jalankan di luar lock supaya listener bebas memanggil balik
+            List<Runnable> listeners = takeDrainListeners();
+            lock.unlock();
+            try {
+                listeners.forEach(Runnable::run);
+            } finally {
+                lock.lock();
+            }
+        }
+        return frame;
+    }
+
+    private List<Runnable> takeDrainListeners() {
+        List<Runnable> listeners = new ArrayList<>(drainListeners);
+        drainListeners.clear();
+        return listeners;
+    }
+
+    private boolean isOverBudget(int incoming) {
+        return queuedBytes + incoming > maxBytes || queuedFrames() + (incoming > 0 ? 1 : 0) > maxMessages;
+    }
+
+    private boolean isAboveLowWater() {
+        return queuedBytes > maxBytes / 2 || queuedFrames() > maxMessages / 2;
+    }
+
+    private void dropOldestEphemeral(int incoming) {
+        Iterator<OutboundFrame> it = interactive.iterator();
+        while (it.hasNext() && isOverBudget(incoming)) {
+            OutboundFrame queued = it.next();
+            if (queued.isEphemeral()) {
+                it.remove();
+                queuedBytes -= queued.size();
+                queued.release();
+            }
+        }
+    }
+
+    private void removeQueued(MessageType type) {
+        Iterator<OutboundFrame> it = interactive.iterator();
+        while (it.hasNext()) {
+            OutboundFrame queued = it.next();
+            if (queued.getType() == type) {
+                it.remove();
+                queuedBytes -= queued.size();
+                queued.release();
+            }
+        }
+    }
+
+    private boolean checkEviction() {
+        if (!isOverBudget(0)) {
+            overBudgetSince = 0;
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (overBudgetSince == 0) {
+            overBudgetSince = now;
+        }
+        return evictAfterMs <= 0 || now - overBudgetSince < evictAfterMs;
+    }
+}
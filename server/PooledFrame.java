@@ -0,0 +1,44 @@
+package server;
+
+import common.MessageType;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Frame yang buffernya dipinjam dari FramePool (chunk yang di-relay apa adanya).
+ * Dihitung referensinya: satu milik router, satu per antrian penerima yang
+ * memegangnya. Buffer kembali ke pool saat referensi terakhir dilepas.
+ *
+ * Frame yang tidak pernah dilepas (koneksi ditutup selagi frame di tengah
+ * penulisan) cukup dibiarkan ke GC; pool tidak mencatat buffer yang dipinjam.
+ */
+final class PooledFrame extends BufferedFrame {
+
+    private static final AtomicIntegerFieldUpdater<PooledFrame> REFS =
+            AtomicIntegerFieldUpdater.newUpdater(PooledFrame.class, "refs");
+
+    private final FramePool pool;
+    private final ByteBuffer pooled;
+    private volatile int refs = 1;
+
+    PooledFrame(MessageType type, ByteBuffer data, FramePool pool) {
+        super(type, data);
+        this.pool = pool;
+        this.pooled = data;
+    }
+
+    @Override
+    public void retain() {
+        REFS.incrementAndGet(this);
+    }
+
+    @Override
+    public void release() {
+        int left = REFS.decrementAndGet(this);
+        if (left == 0) {
+            pool.release(pooled);
+        } else if (left < 0) {
+            throw new IllegalStateException("PooledFrame dilepas lebih dari sekali");
+        }
+    }
+}
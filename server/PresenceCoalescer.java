@@ -0,0 +1,89 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mengumpulkan event join/leave selama satu jendela waktu pendek, lalu
+ * menyerahkannya ke ServerController sebagai satu batch.
+ * Saat reconnect massal, ratusan join jadi satu update per jendela.
+ *
+ * Join lalu leave (atau sebaliknya) user yang sama di jendela yang sama saling meniadakan.
+ * Event berupa entri "id:nama", jadi login ulang (id baru) tetap terkirim sebagai leave + join.
+ */
+public class PresenceCoalescer {
+
+    private final long windowMs;
+    private final ScheduledExecutorService scheduler;
+
+    // Dijaga monitor 'this' (hanya operasi set, tidak pernah I/O)
+    private Set<String> joined = new LinkedHashSet<>();
+    private Set<String> left = new LinkedHashSet<>();
+    private boolean flushScheduled = false;
+
+    public PresenceCoalescer(long windowMs) {
+        this.windowMs = windowMs;
+        if (windowMs > 0) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "presence-coalescer");
+                t.setDaemon(true);
+                return t;
+            });
+        } else {
+            this.scheduler = null;
+        }
+    }
+
+    public void userJoined(String username) {
+        synchronized (this) {
+            if (!left.remove(username)) {
+                joined.add(username);
+            }
+        }
+        scheduleFlush();
+    }
+
+    public void userLeft(String username) {
+        synchronized (this) {
+            if (!joined.remove(username)) {
+                left.add(username);
+            }
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (scheduler == null) {
+            flush(); // Jendela 0 = kirim langsung
+            return;
+        }
+        synchronized (this) {
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        scheduler.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        List<String> joinedBatch;
+        List<String> leftBatch;
+        synchronized (this) {
+            flushScheduled = false;
+            if (joined.isEmpty() && left.isEmpty()) {
+                return;
+            }
+            joinedBatch = new ArrayList<>(joined);
+            leftBatch = new ArrayList<>(left);
+            joined = new LinkedHashSet<>();
+            left = new LinkedHashSet<>();
+        }
+        ServerController.publishPresence(joinedBatch, leftBatch);
+    }
+}
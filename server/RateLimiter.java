@@ -0,0 +1,96 @@
+package server;
+
+import common.MessageType;
+
+/**
+ * Batas laju per sesi, diperiksa MessageRouter sebelum pesan dirutekan.
+ * Satu bucket untuk semua pesan, ditambah bucket per tipe yang mahal:
+ * BROADCAST_CHAT (fan-out ke semua user), PRIVATE_CHAT, BUZZ, dan byte FILE_CHUNK.
+ *
+ * Pesan yang melewati batas dibuang, kecuali chunk file: chunk selalu diteruskan
+ * tapi pembacaan socket pengirim ditahan sampai bucket-nya pulih, jadi
+ * transfer melambat tanpa rusak. Hanya disentuh thread pembaca sesi.
+ */
+public final class RateLimiter {
+
+    /**
+     * Tindakan untuk pesan yang dibuang.
+     */
+    public enum Verdict {
+        SILENT,     // sudah diberi tahu di jendela ini
+        NOTICE,     // pertama kali di jendela ini: beri tahu pengirim
+        DISCONNECT  // terlalu banyak pesan dibuang: klien dianggap runaway
+    }
+
+    private final TokenBucket messages = TokenBucket.of(ServerConfig.RATE_MESSAGES_PER_SEC,
+            ServerConfig.RATE_MESSAGES_BURST);
+    private final TokenBucket broadcast = TokenBucket.of(ServerConfig.RATE_BROADCAST_PER_SEC,
+            ServerConfig.RATE_BROADCAST_BURST);
+    private final TokenBucket privateChat = TokenBucket.of(ServerConfig.RATE_PRIVATE_PER_SEC,
+            ServerConfig.RATE_PRIVATE_BURST);
+    private final TokenBucket buzz = TokenBucket.of(ServerConfig.RATE_BUZZ_PER_MIN / 60.0,
+            ServerConfig.RATE_BUZZ_BURST);
+    private final TokenBucket fileBytes = TokenBucket.of(ServerConfig.RATE_FILE_BYTES_PER_SEC,
+            ServerConfig.RATE_FILE_BURST_BYTES);
+
+    private static final long MIN_THROTTLE_MS = 20;
+
+    private long windowStart;
+    private int dropsInWindow;
+
+    /**
+     * @return false jika pesan ini harus dibuang.
+     */
+    public boolean admit(MessageType type) {
+        // DISCONNECT selalu lewat; PONG adalah jawaban atas PING server sendiri
+        if (type == MessageType.DISCONNECT || type == MessageType.PONG) {
+            return true;
+        }
+        TokenBucket specific = bucketFor(type);
+        if (specific != null && !specific.tryTake(1)) {
+            return false;
+        }
+        return messages == null || messages.tryTake(1);
+    }
+
+    /**
+     * Catat byte chunk file yang diterima.
+     *
+     * @return ms pembacaan socket pengirim perlu ditahan (0 = tidak perlu).
+     */
+    public long throttleFile(int bytes) {
+        long wait = fileBytes != null ? fileBytes.take(bytes) : 0;
+        // Utang kecil dibiarkan menumpuk lalu dibayar sekali jeda: rata-ratanya sama,
+        // tapi tidak ada sleep/timer per chunk
+        return wait >= MIN_THROTTLE_MS ? wait : 0;
+    }
+
+    /**
+     * Catat satu pesan yang dibuang dan tentukan tindakannya.
+     */
+    public Verdict dropped() {
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= ServerConfig.RATE_NOTICE_WINDOW_MS) {
+            windowStart = now;
+            dropsInWindow = 0;
+        }
+        dropsInWindow++;
+        if (dropsInWindow == ServerConfig.RATE_DISCONNECT_AFTER_DROPS) {
+            return Verdict.DISCONNECT;
+        }
+        return dropsInWindow == 1 ? Verdict.NOTICE : Verdict.SILENT;
+    }
+
+    private TokenBucket bucketFor(MessageType type) {
+        switch (type) {
+            case BROADCAST_CHAT:
+                return broadcast;
+            case PRIVATE_CHAT:
+                return privateChat;
+            case BUZZ:
+                return buzz;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package server;
+
+/**
+ * Konfigurasi server yang dibaca dari System Property (-Dserver.xxx=...).
+ * Semua nilai punya default supaya ServerMain tetap bisa dijalankan tanpa argumen.
+ */
+public final class ServerConfig {
+
+    // --- Koneksi ---
+    public static final int PORT = Integer.getInteger("server.port", 50125);
+
+    // Mode eksekusi: "platform" (1 thread OS per klien), "virtual" (JDK 21) atau "nio" (Selector)
+    public static final String MODE = System.getProperty("server.mode", "platform");
+
+    // Jumlah event loop untuk mode "nio" (default: satu per core)
+    public static final int NIO_LOOPS = Integer.getInteger("server.nio.loops",
+            Runtime.getRuntime().availableProcessors());
+
+    // --- Handshake (accept -> CONNECT) ---
+    public static final int HANDSHAKE_THREADS = Integer.getInteger("server.handshake.threads", 4);
+    public static final int HANDSHAKE_QUEUE = Integer.getInteger("server.handshake.queue", 256);
+    public static final int HANDSHAKE_TIMEOUT_MS = Integer.getInteger("server.handshake.timeoutMs", 10_000);
+
+    // --- Admission control (lihat Admission). 0 = tanpa batas ---
+    public static final int ADMISSION_MAX_CONNECTIONS = Integer.getInteger("server.admission.maxConnections", 10_000);
+    // Koneksi yang sudah diterima tapi belum mengirim CONNECT
+    public static final int ADMISSION_MAX_PENDING_HANDSHAKES = Integer.getInteger(
+            "server.admission.maxPendingHandshakes", 256);
+    public static final int ADMISSION_ACCEPTS_PER_SEC = Integer.getInteger("server.admission.acceptsPerSec", 200);
+    public static final int ADMISSION_ACCEPT_BURST = Integer.getInteger("server.admission.acceptBurst", 400);
+
+    // --- Rate limit per sesi (lihat RateLimiter). Rate 0 = tanpa batas ---
+    // Semua pesan dari satu klien (kecuali chunk file)
+    public static final int RATE_MESSAGES_PER_SEC = Integer.getInteger("server.rate.messagesPerSec", 200);
+    public static final int RATE_MESSAGES_BURST = Integer.getInteger("server.rate.messagesBurst", 400);
+    // Broadcast paling mahal: satu pesan masuk = satu frame ke setiap user online
+    public static final int RATE_BROADCAST_PER_SEC = Integer.getInteger("server.rate.broadcastPerSec", 5);
+    public static final int RATE_BROADCAST_BURST = Integer.getInteger("server.rate.broadcastBurst", 20);
+    public static final int RATE_PRIVATE_PER_SEC = Integer.getInteger("server.rate.privatePerSec", 20);
+    public static final int RATE_PRIVATE_BURST = Integer.getInteger("server.rate.privateBurst", 50);
+    public static final int RATE_BUZZ_PER_MIN = Integer.getInteger("server.rate.buzzPerMin", 6);
+    public static final int RATE_BUZZ_BURST = Integer.getInteger("server.rate.buzzBurst", 3);
+    // Upload file per klien; kelebihannya memperlambat pengirim, tidak dibuang
+    public static final long RATE_FILE_BYTES_PER_SEC = Long.getLong("server.rate.fileBytesPerSec", 128L * 1024 * 1024);
+    public static final long RATE_FILE_BURST_BYTES = Long.getLong("server.rate.fileBurstBytes", 16L * 1024 * 1024);
+    // Pengirim diberi tahu sekali per jendela ini saat pesannya dibuang
+    public static final long RATE_NOTICE_WINDOW_MS = Long.getLong("server.rate.noticeWindowMs", 5_000);
+    // Putus klien yang pesannya dibuang sebanyak ini dalam satu jendela (0 = jangan putus)
+    public static final int RATE_DISCONNECT_AFTER_DROPS = Integer.getInteger("server.rate.disconnectAfterDrops", 500);
+
+    // --- Heartbeat (lihat Heartbeat) ---
+    // Klien yang tidak mengirim apa pun selama ini dikirimi PING (0 = heartbeat mati)
+    public static final long HEARTBEAT_IDLE_MS = Long.getLong("server.heartbeat.idleMs", 30_000);
+    // Tidak ada frame apa pun sejak PING selama ini: koneksi dianggap mati dan diputus
+    public static final long HEARTBEAT_TIMEOUT_MS = Long.getLong("server.heartbeat.timeoutMs", 10_000);
+    // Resolusi timing wheel; batas waktu di atas bisa terlambat paling banyak satu tick
+    public static final long HEARTBEAT_TICK_MS = Long.getLong("server.heartbeat.tickMs", 500);
+    public static final int HEARTBEAT_WHEEL_SLOTS = Integer.getInteger("server.heartbeat.wheelSlots", 512);
+
+    // --- Budget antrian keluar per klien (lihat OutboundQueue) ---
+    public static final long OUTBOUND_MAX_BYTES = Long.getLong("server.outbound.maxBytes", 4L * 1024 * 1024);
+    public static final int OUTBOUND_MAX_MESSAGES = Integer.getInteger("server.outbound.maxMessages", 10_000);
+    // Putus klien yang over budget lebih lama dari ini (0 = jangan pernah putus)
+    public static final long OUTBOUND_EVICT_AFTER_MS = Long.getLong("server.outbound.evictAfterMs", 10_000);
+    // Buang typing/buzz/user list lama lebih dulu saat over budget
+    public static final boolean OUTBOUND_DROP_EPHEMERAL = Boolean.parseBoolean(
+            System.getProperty("server.outbound.dropEphemeral", "true"));
+    // Tahan pengirim file (berhenti baca socketnya) selama penerima over budget
+    public static final boolean OUTBOUND_PAUSE_FILE = Boolean.parseBoolean(
+            System.getProperty("server.outbound.pauseFile", "true"));
+    // Porsi minimum bandwidth (persen byte) untuk data file saat bersaing dengan chat
+    public static final int OUTBOUND_BULK_SHARE_PERCENT = Integer.getInteger("server.outbound.bulkSharePercent", 25);
+    // SO_SNDBUF socket klien (byte, 0 = default OS). Prioritas antrian hanya berlaku
+    // sebelum data masuk kernel; buffer kernel yang besar membuat chat antre di belakang chunk
+    public static final int SOCKET_SEND_BUFFER = Integer.getInteger("server.socket.sendBuffer", 256 * 1024);
+    // Saat ramai (flush sebelumnya baru saja terjadi), writer menunda flush paling lama
+    // selama ini untuk menggabungkan pesan berikutnya. Pesan tunggal saat sepi tetap
+    // langsung di-flush. 0 = flush begitu antrian kosong
+    public static final long OUTBOUND_FLUSH_DELAY_US = Long.getLong("server.outbound.flushDelayUs", 1000);
+    // Engine NIO: batas frame & byte yang digabung dalam satu gathering write
+    public static final int OUTBOUND_GATHER_FRAMES = Integer.getInteger("server.outbound.gatherFrames", 64);
+    public static final int OUTBOUND_GATHER_BYTES = Integer.getInteger("server.outbound.gatherBytes", 64 * 1024);
+
+    // --- Buffer frame masuk (lihat FramePool) ---
+    // Batas byte buffer yang disimpan per kelas ukuran (heap & direct masing-masing)
+    public static final long POOL_BYTES_PER_CLASS = Long.getLong("server.pool.bytesPerClass", 8L * 1024 * 1024);
+    // Log isi setiap chat ke konsol. Mematikannya membuat routing chat bebas alokasi String
+    public static final boolean LOG_CHAT = Boolean.parseBoolean(System.getProperty("server.log.chat", "true"));
+
+    // --- Spool file untuk transfer ke "ALL" (lihat FileSpool) ---
+    public static final boolean SPOOL_ENABLED = Boolean.parseBoolean(
+            System.getProperty("server.spool.enabled", "true"));
+    public static final String SPOOL_DIR = System.getProperty("server.spool.dir",
+            System.getProperty("java.io.tmpdir") + "/projeksocket-spool");
+    // Total ukuran semua spool; transfer baru yang tidak muat dikirim langsung (tanpa spool)
+    public static final long SPOOL_MAX_BYTES = Long.getLong("server.spool.maxBytes", 1024L * 1024 * 1024);
+    // Berapa lama spool yang sudah lengkap disimpan untuk penerima yang lambat
+    public static final long SPOOL_RETENTION_MS = Long.getLong("server.spool.retentionMs", 10 * 60_000);
+    // Kredit upload yang diberikan server ke pengirim (byte di depan yang sudah tersimpan)
+    public static final long SPOOL_WINDOW_BYTES = Long.getLong("server.spool.windowBytes", 8L * 1024 * 1024);
+
+    // --- Transfer file langsung antar klien (P2P) ---
+    // Server hanya meneruskan alamat + token; jika koneksi langsung gagal, pakai relay biasa
+    public static final boolean P2P_ENABLED = Boolean.parseBoolean(
+            System.getProperty("server.p2p.enabled", "true"));
+
+    // --- Cache isi file (dedup berdasarkan SHA-256, lihat ContentCache) ---
+    public static final boolean CACHE_ENABLED = Boolean.parseBoolean(
+            System.getProperty("server.cache.enabled", "true"));
+    public static final String CACHE_DIR = System.getProperty("server.cache.dir",
+            System.getProperty("java.io.tmpdir") + "/projeksocket-cache");
+    // Total ukuran isi cache; yang paling lama tidak dipakai dibuang lebih dulu (LRU)
+    public static final long CACHE_MAX_BYTES = Long.getLong("server.cache.maxBytes", 2L * 1024 * 1024 * 1024);
+    // File lebih kecil dari ini tidak di-cache (upload ulangnya murah)
+    public static final long CACHE_MIN_FILE_BYTES = Long.getLong("server.cache.minFileBytes", 64 * 1024);
+
+    // --- Presence ---
+    // Jendela pengumpulan join/leave (ms). 0 = kirim tiap event langsung
+    public static final long PRESENCE_WINDOW_MS = Long.getLong("server.presence.windowMs", 100);
+    // Gabungkan beberapa join/leave dalam satu jendela jadi satu pesan sistem
+    public static final boolean PRESENCE_SUMMARY = Boolean.parseBoolean(
+            System.getProperty("server.presence.summary", "true"));
+
+    // --- Typing indicator ---
+    // Jeda minimum antar transisi yang diteruskan untuk satu (pengirim, tujuan)
+    public static final long TYPING_MIN_INTERVAL_MS = Long.getLong("server.typing.minIntervalMs", 500);
+    // Status "typing" tanpa pembaruan selama ini dianggap berhenti
+    public static final long TYPING_TTL_MS = Long.getLong("server.typing.ttlMs", 10_000);
+    public static final long TYPING_SWEEP_MS = Long.getLong("server.typing.sweepMs", 250);
+
+    private ServerConfig() {
+    }
+}
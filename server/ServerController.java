@@ -1,158 +1,970 @@
 package server;
 
+import common.ContentProof;
 import common.Message;
 import common.MessageType;
-import java.util.HashMap;
+import common.MessageView;
+import common.NameCache;
+import common.WireFormat;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ServerController {
-    // simpan datauser
-    private static HashMap<String, ClientHandler> onlineUsers = new HashMap<>();
+    // simpan datauser (concurrent: routing chat tidak perlu lock global)
+    private static final Map<String, ClientSession> onlineUsers = new ConcurrentHashMap<>();
 
-    public static synchronized void addUser(String username, ClientHandler handler) {
-        onlineUsers.put(username, handler);
-        System.out.println("[SERVER] User registered: " + username);
+    // Routing chat & sinyal lewat id sesi (protokol v9); nama hanya untuk login & klien lama
+    private static final Map<Integer, ClientSession> sessionsById = new ConcurrentHashMap<>();
+    private static final AtomicInteger nextSessionId = new AtomicInteger(Message.ALL_ID + 1);
 
-        broadcastMessage("Server", username + " has joined the chat.");
+    // Sesi yang USER_JOINED-nya belum terkirim (masih di jendela coalescer):
+    // pesan darinya tetap membawa nama, karena klien lain belum mengenal id-nya
+    private static final Set<Integer> unannounced = ConcurrentHashMap.newKeySet();
 
-        broadcastUserList();
+    // Nama tujuan dari frame mentah (klien lama / sebelum id dikenal) tanpa String baru per pesan
+    private static final NameCache names = new NameCache(1024);
+
+    // Lock hanya untuk perubahan keanggotaan, supaya urutan user list yang
+    // dikirim ke klien konsisten. sendMessage sekarang cuma enqueue, jadi
+    // lock ini tidak pernah ditahan selama I/O socket.
+    private static final ReentrantLock presenceLock = new ReentrantLock();
+
+    // Versi presence: naik 1 setiap delta yang dikirim. Klien memakai ini untuk
+    // mendeteksi delta yang terlewat (dijaga presenceLock)
+    private static long presenceVersion = 0;
+
+    // Join/leave dikumpulkan per jendela waktu sebelum dikirim ke klien
+    private static final PresenceCoalescer presence = new PresenceCoalescer(ServerConfig.PRESENCE_WINDOW_MS);
+
+    // Status mengetik per (pengirim, tujuan)
+    private static final TypingTracker typing = new TypingTracker(ServerConfig.TYPING_MIN_INTERVAL_MS,
+            ServerConfig.TYPING_TTL_MS, ServerConfig.TYPING_SWEEP_MS);
+
+    // Transfer file aktif (chunk dirutekan lewat transferId)
+    private static final TransferTable transfers = new TransferTable();
+
+    // Spool transfer ke "ALL": upload ditulis sekali, tiap penerima membaca sesuai lajunya
+    private static final SpoolStore spools = ServerConfig.SPOOL_ENABLED
+            ? new SpoolStore(ServerConfig.SPOOL_DIR, ServerConfig.SPOOL_MAX_BYTES, ServerConfig.SPOOL_RETENTION_MS,
+                    1000, ServerController::evictSpool)
+            : null;
+
+    // Isi file yang pernah diupload (SHA-256): upload ulang file yang sama dilewati
+    private static final ContentCache cache = ServerConfig.CACHE_ENABLED
+            ? new ContentCache(ServerConfig.CACHE_DIR, ServerConfig.CACHE_MAX_BYTES,
+                    ServerConfig.CACHE_MIN_FILE_BYTES)
+            : null;
+
+    /**
+     * Bagikan id sesi baru (dipanggil saat CONNECT, sebelum balasan handshake).
+     * Id tidak pernah dipakai ulang, jadi pesan telat dari sesi lama tidak salah alamat.
+     */
+    public static void assignSessionId(ClientSession session) {
+        session.setSessionId(nextSessionId.getAndIncrement());
     }
 
-    public static synchronized void removeUser(String username) {
-        if (onlineUsers.containsKey(username)) {
-            onlineUsers.remove(username);
-            System.out.println("[SERVER] user removed : " + username);
-            broadcastMessage("Server", username + "has left the chat");
+    /**
+     * Daftarkan sesi dengan nama ini. Balasan handshake (ack) dikirim lebih dulu,
+     * sebelum snapshot user list.
+     *
+     * @return false jika nama sedang dipakai sesi lain (sesi ini tidak didaftarkan).
+     */
+    public static boolean addUser(String username, ClientSession handler, Message ack) {
+        presenceLock.lock();
+        try {
+            // Semua pendaftaran lewat lock ini, jadi cek lalu put tetap atomik
+            if (onlineUsers.containsKey(username)) {
+                return false;
+            }
+            handler.sendMessage(ack);
+            handler.setUsername(username);
+            onlineUsers.put(username, handler);
+            sessionsById.put(handler.getSessionId(), handler);
+            unannounced.add(handler.getSessionId());
+            System.out.println("[SERVER] User registered: " + username + " (#" + handler.getSessionId() + ")");
 
-            broadcastUserList();
+            // User baru langsung dapat snapshot lengkap, yang lain dapat delta
+            // gabungan saat jendela coalescer ditutup
+            sendUserSnapshot(handler);
+            presence.userJoined(presenceEntry(handler));
+        } finally {
+            presenceLock.unlock();
+        }
+        if (handler.isClosed()) {
+            // Putus sebelum namanya terpasang: closeConnection() tidak sempat menghapus
+            removeUser(username, handler);
         }
+        return true;
+    }
 
+    public static void removeUser(String username, ClientSession handler) {
+        presenceLock.lock();
+        try {
+            // Hapus hanya jika entry masih milik sesi ini (bisa saja sudah login ulang)
+            if (onlineUsers.remove(username, handler)) {
+                System.out.println("[SERVER] user removed : " + username);
+                sessionsById.remove(handler.getSessionId(), handler);
+                unannounced.remove(handler.getSessionId());
+                presence.userLeft(presenceEntry(handler));
+                typing.clearSender(handler.getSessionId());
+                clearFileTransfers(handler);
+            }
+        } finally {
+            presenceLock.unlock();
+        }
     }
 
-    public static synchronized void broadcastMessage(String senderName, String textContent) {
+    public static void broadcastMessage(String senderName, String textContent) {
         Message msg = new Message(MessageType.BROADCAST_CHAT);
         msg.setSender(senderName);
         msg.setContent(textContent);
-        msg.setRecipient("ALL");
+        msg.setRecipientId(Message.ALL_ID);
 
-        for (ClientHandler client : onlineUsers.values()) {
-            client.sendMessage(msg);
-        }
+        fanOut(OutboundFrame.of(msg), null);
     }
 
-    public static synchronized void sendPrivateMessage(String senderName, String recipientName, String textContent) {
-        ClientHandler targetClient = onlineUsers.get(recipientName);
+    /**
+     * Chat ke semua dari user: dirutekan & dikirim dengan id sesi, tanpa nama.
+     */
+    public static void broadcastChat(ClientSession from, String textContent) {
+        Message msg = new Message(MessageType.BROADCAST_CHAT);
+        stampSender(msg, from);
+        msg.setContent(textContent);
+        msg.setRecipientId(Message.ALL_ID);
+
+        fanOut(OutboundFrame.of(msg), null);
+    }
+
+    public static void sendPrivateMessage(ClientSession from, Message request) {
+        ClientSession targetClient = lookupTarget(request);
 
         if (targetClient != null) {
             Message msg = new Message(MessageType.PRIVATE_CHAT);
-            msg.setSender(senderName);
-            msg.setContent(textContent);
-            msg.setRecipient(recipientName);
+            stampSender(msg, from);
+            msg.setContent(request.getContent());
+            msg.setRecipientId(targetClient.getSessionId());
 
             targetClient.sendMessage(msg);
-            System.out.println("[PRIVATE] " + senderName + " -->" + recipientName);
+            if (ServerConfig.LOG_CHAT) {
+                System.out.println("[PRIVATE] " + from.getUsername() + " -->" + targetClient.getUsername());
+            }
         } else {
-            System.out.println("[GAGAL] User " + recipientName + " tidak ditemukan/offline");
+            System.out.println("[GAGAL] User " + describeTarget(request) + " tidak ditemukan/offline");
         }
     }
 
-    public static synchronized void relayFilePacket(Message msg) {
-        String target = msg.getRecipient();
+    /**
+     * Chat dari frame mentah (lihat MessageRouter.routeRaw): frame keluar disusun
+     * langsung dari byte content frame masuk, tanpa Message atau String perantara.
+     */
+    public static void relayChat(ClientSession from, MessageView chat) {
+        if (chat.getType() == MessageType.BROADCAST_CHAT) {
+            fanOut(chatFrame(MessageType.BROADCAST_CHAT, from, Message.ALL_ID, chat), null);
+            return;
+        }
+        ClientSession targetClient = lookupTarget(chat.getRecipientId(), chat.recipient(names));
+        if (targetClient != null) {
+            targetClient.sendFrame(chatFrame(MessageType.PRIVATE_CHAT, from, targetClient.getSessionId(), chat));
+            if (ServerConfig.LOG_CHAT) {
+                System.out.println("[PRIVATE] " + from.getUsername() + " -->" + targetClient.getUsername());
+            }
+        } else {
+            System.out.println("[GAGAL] User " + describeTarget(chat) + " tidak ditemukan/offline");
+        }
+    }
+
+    private static OutboundFrame chatFrame(MessageType type, ClientSession from, int recipientId, MessageView chat) {
+        String sender = isUnannounced(from) ? from.getUsername() : null;
+        int contentLength = chat.hasContent() ? chat.contentLength() : -1;
+        return new BufferedFrame(type, WireFormat.encodeChat(type, sender, from.getSessionId(), recipientId,
+                chat.buffer(), chat.contentOffset(), contentLength));
+    }
+
+    /**
+     * Pesan yang melewati batas laju pengirimnya (lihat RateLimiter) dibuang.
+     * Pengirim diberi tahu sekali per jendela; klien yang terus membanjiri diputus.
+     */
+    public static void dropRateLimited(ClientSession session, MessageType type) {
+        switch (session.getRateLimiter().dropped()) {
+            case NOTICE:
+                System.out.println("[RATE] " + session.getUsername() + " melewati batas " + type + ", pesan dibuang.");
+                Message notice = new Message(MessageType.BROADCAST_CHAT);
+                notice.setSender("Server");
+                notice.setContent("Pesan terlalu cepat, sebagian tidak dikirim.");
+                notice.setRecipientId(Message.ALL_ID);
+                session.sendMessage(notice);
+                break;
+            case DISCONNECT:
+                System.out.println("[RATE] " + session.getUsername() + " terus membanjiri server, diputus.");
+                Message bye = new Message(MessageType.DISCONNECT);
+                bye.setSender("Server");
+                bye.setContent("Terlalu banyak pesan dalam waktu singkat.");
+                session.sendMessage(bye); // writer menutup koneksi setelah frame ini
+                break;
+            default:
+                break;
+        }
+    }
+
+    // --- Id sesi ---
+
+    /**
+     * Sesi tujuan pesan: recipientId (v9), atau nama sebagai cadangan.
+     */
+    private static ClientSession lookupTarget(Message msg) {
+        return lookupTarget(msg.getRecipientId(), msg.getRecipient());
+    }
+
+    private static ClientSession lookupTarget(int recipientId, String recipient) {
+        if (recipientId > Message.ALL_ID) {
+            return sessionsById.get(recipientId);
+        }
+        return recipient != null ? onlineUsers.get(recipient) : null;
+    }
 
-        if (target.equals("ALL")) {
-            for (ClientHandler client : onlineUsers.values()) {
-                if (!client.getUsername().equals(msg.getSender())) {
-                    client.sendMessage(msg);
+    private static boolean isBroadcast(Message msg) {
+        return isBroadcast(msg.getRecipientId(), msg.getRecipient());
+    }
+
+    private static boolean isBroadcast(int recipientId, String recipient) {
+        return recipientId == Message.ALL_ID || "ALL".equals(recipient);
+    }
+
+    /**
+     * Untuk log: nama tujuan, "ALL", atau id jika sesinya sudah tidak ada.
+     */
+    public static String describeTarget(Message msg) {
+        return describeTarget(msg.getRecipientId(), msg.getRecipient());
+    }
+
+    public static String describeTarget(MessageView msg) {
+        return describeTarget(msg.getRecipientId(), msg.recipient(names));
+    }
+
+    private static String describeTarget(int recipientId, String recipient) {
+        if (isBroadcast(recipientId, recipient)) {
+            return "ALL";
+        }
+        ClientSession target = lookupTarget(recipientId, recipient);
+        return target != null ? target.getUsername() : recipient != null ? recipient : "#" + recipientId;
+    }
+
+    /**
+     * Isi pengirim dengan id sesinya; nama ikut hanya selama USER_JOINED-nya belum terkirim.
+     */
+    private static void stampSender(Message msg, ClientSession from) {
+        msg.setSenderId(from.getSessionId());
+        msg.setSender(isUnannounced(from) ? from.getUsername() : null);
+    }
+
+    // Hampir selalu kosong di luar jendela coalescer: cek isEmpty dulu, tanpa boxing id
+    private static boolean isUnannounced(ClientSession session) {
+        return !unannounced.isEmpty() && unannounced.contains(session.getSessionId());
+    }
+
+    // Entri presence "id:nama" (nama boleh mengandung ':', id tidak)
+    private static String presenceEntry(ClientSession session) {
+        return session.getSessionId() + ":" + session.getUsername();
+    }
+
+    private static String entryName(String entry) {
+        return entry.substring(entry.indexOf(':') + 1);
+    }
+
+    /**
+     * FILE_REQUEST: daftarkan transfer (beserta sesi penerimanya) lalu teruskan.
+     * Penerima belum boleh dikirimi chunk sampai memberi FILE_CREDIT.
+     * Jika isi file (contentHash) sudah ada di cache, pengirim ditantang dulu
+     * (FILE_PROOF); hash dan ukuran saja bukan bukti pengirim memegang file itu.
+     */
+    public static void beginFileTransfer(ClientSession from, Message msg) {
+        List<ClientSession> receivers = new ArrayList<>();
+        String target = null;
+        if (isBroadcast(msg)) {
+            target = "ALL";
+            for (ClientSession client : onlineUsers.values()) {
+                if (client != from) {
+                    receivers.add(client);
                 }
             }
         } else {
-            ClientHandler targetClient = onlineUsers.get(target);
+            ClientSession targetClient = lookupTarget(msg);
             if (targetClient != null) {
-                targetClient.sendMessage(msg);
-            } else {
-                //
+                target = targetClient.getUsername();
+                receivers.add(targetClient);
             }
         }
+
+        TransferTable.Transfer transfer = transfers.begin(msg.getTransferId(), from, target, msg.getContent(),
+                receivers);
+        if (transfer == null) {
+            System.out.println("[FILE GAGAL] transferId " + msg.getTransferId() + " dari " + from.getUsername()
+                    + " tidak valid/sudah dipakai/tanpa penerima");
+            rejectToOwner(from, msg.getTransferId(), "Penerima tidak tersedia.");
+            return;
+        }
+
+        FileChannel cached = cache != null && spools != null
+                ? cache.open(msg.getContentHash(), msg.getFileSize())
+                : null;
+        if (cached != null && challengeCacheHit(transfer, cached, msg)) {
+            return; // penerima baru dikabari setelah FILE_PROOF
+        }
+        startFileTransfer(transfer, msg, null);
     }
 
-    public static synchronized void sendPrivateFile(String senderName, String recipientName, String fileName,
-            byte[] data) {
-        ClientHandler targetClient = onlineUsers.get(recipientName);
+    /**
+     * Kirim tantangan FILE_PROOF ke pengirim. Jawaban yang benar dihitung sekarang
+     * dari isi cache (beberapa potongan kecil), channel-nya langsung ditutup.
+     *
+     * @return false jika pengirim tidak bisa ditantang (klien lama, cache tidak
+     *         terbaca): transfer jalan sebagai upload biasa.
+     */
+    private static boolean challengeCacheHit(TransferTable.Transfer transfer, FileChannel cached, Message request) {
+        try {
+            if (transfer.getOwner().getProtocolVersion() < WireFormat.CACHE_PROOF_VERSION) {
+                return false;
+            }
+            byte[] nonce = ContentProof.newNonce();
+            transfer.challenge(ContentProof.compute(cached, request.getFileSize(), nonce), request);
 
-        if (targetClient != null) {
-            Message msg = new Message(MessageType.FILE_REQUEST);
-            msg.setSender(senderName);
-            msg.setRecipient(recipientName);
-            msg.setContent(fileName);
-            msg.setFileChunk(data);
+            Message challenge = new Message(MessageType.FILE_PROOF);
+            challenge.setSender("Server");
+            challenge.setTransferId(transfer.getId());
+            challenge.setContentHash(nonce);
+            transfer.getOwner().sendMessage(challenge);
+            return true;
+        } catch (IOException e) {
+            System.out.println("[CACHE] transfer #" + transfer.getId() + " gagal membaca cache: " + e.getMessage());
+            return false;
+        } finally {
+            closeQuietly(cached);
+        }
+    }
 
-            targetClient.sendMessage(msg);
-            System.out.println("[FILE PRIV] " + senderName + " sent file '" + fileName + "' to " + recipientName);
+    /**
+     * FILE_PROOF dari pengirim: jawaban tantangan cache hit. Benar: penerima
+     * dilayani dari cache tanpa upload. Salah (atau isi cache sudah dibuang
+     * sementara itu): upload biasa.
+     */
+    public static void proveFileContent(ClientSession from, Message msg) {
+        TransferTable.Transfer transfer = transfers.lookup(msg.getTransferId(), from);
+        Message request = transfer != null ? transfer.takeChallenge() : null;
+        if (request == null) {
+            return;
+        }
+        FileChannel cached = null;
+        if (transfer.matchesProof(msg.getContentHash())) {
+            cached = cache.open(request.getContentHash(), request.getFileSize());
         } else {
-            System.out.println("[GAGAL] Kirim file gagal. User " + recipientName + "offline");
+            System.out.println("[CACHE] transfer #" + transfer.getId() + ": bukti isi file dari "
+                    + from.getUsername() + " tidak cocok, upload biasa");
+        }
+        startFileTransfer(transfer, request, cached);
+    }
+
+    /**
+     * Lanjutan FILE_REQUEST: dari cache (cached != null, pengirim sudah terbukti
+     * memegang isinya), lewat spool (transfer ke "ALL"), atau relay biasa.
+     */
+    private static void startFileTransfer(TransferTable.Transfer transfer, Message msg, FileChannel cached) {
+        List<ClientSession> receivers = new ArrayList<>(transfer.getReceivers());
+        if (cached == null && cache != null) {
+            transfer.setIngest(cache.beginIngest(msg.getContentHash(), msg.getFileSize()));
+        }
+
+        if (cached != null || ("ALL".equals(transfer.getTarget()) && spools != null)) {
+            FileSpool spool = spools.open(transfer, msg.getFileSize(), receivers);
+            if (spool != null) {
+                transfer.setSpool(spool);
+                OutboundFrame frame = OutboundFrame.of(msg);
+                for (ClientSession client : receivers) {
+                    client.sendFrame(frame);
+                }
+                if (cached != null) {
+                    replayFromCache(transfer, spool, cached, msg);
+                } else {
+                    // Pengirim cukup menunggu disk server, bukan penerima
+                    sendCredit(transfer, spool.initialCredit());
+                    System.out.println("[SPOOL] transfer #" + transfer.getId() + " di-spool untuk "
+                            + receivers.size() + " penerima");
+                }
+                return;
+            }
+            if (cached != null) {
+                // Spool penuh: upload biasa
+                closeQuietly(cached);
+                transfer.setIngest(cache.beginIngest(msg.getContentHash(), msg.getFileSize()));
+            }
         }
+        relayToReceivers(transfer, OutboundFrame.of(msg));
     }
 
-    public static synchronized void broadcastUserList() {
-        // ambil nama user
-        StringBuilder sb = new StringBuilder();
+    /**
+     * Cache hit: upload dilewati, isi cache diputar ulang ke spool transfer ini.
+     */
+    private static void replayFromCache(TransferTable.Transfer transfer, FileSpool spool, FileChannel cached,
+            Message request) {
+        Message skip = new Message(MessageType.FILE_CACHED);
+        skip.setSender("Server");
+        skip.setTransferId(transfer.getId());
+        skip.setContent(request.getContent());
+        transfer.getOwner().sendMessage(skip);
 
-        for (String user : onlineUsers.keySet()) {
-            sb.append(user).append(",");
+        Message complete = new Message(MessageType.FILE_COMPLETE);
+        complete.setSender(request.getSender());
+        complete.setSenderId(request.getSenderId());
+        complete.setRecipient(request.getRecipient());
+        complete.setRecipientId(request.getRecipientId());
+        complete.setContent(request.getContent());
+        complete.setTransferId(transfer.getId());
 
+        System.out.println("[CACHE] Hit: transfer #" + transfer.getId() + " '" + request.getContent()
+                + "' dilayani dari cache");
+        cache.replay(cached, spool, transfer.getId(), OutboundFrame.of(complete).buffer(), e -> {
+            System.out.println("[CACHE] transfer #" + transfer.getId() + " gagal: " + e.getMessage());
+            abortSpool(transfer, "Cache server gagal.");
+        });
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
         }
+    }
 
-        // hapus koma terakhir jika ada
-        if (sb.length() > 0) {
-            sb.setLength(sb.length() - 1);
+    /**
+     * FILE_CHUNK: tujuan diambil dari tabel transfer, bukan dari frame.
+     */
+    public static void relayFileChunk(ClientSession from, long transferId, BufferedFrame frame) {
+        TransferTable.Transfer transfer = transfers.lookup(transferId, from);
+        if (transfer == null) {
+            return; // transfer tidak dikenal, sudah ditolak, atau milik sesi lain
         }
+        ContentCache.Ingest ingest = transfer.getIngest();
+        if (ingest != null) {
+            try {
+                ingest.write(WireFormat.peekChunk(frame.buffer()));
+            } catch (IOException e) {
+                ingest.discard();
+            }
+        }
+        FileSpool spool = transfer.getSpool();
+        if (spool == null) {
+            relayToReceivers(transfer, frame);
+            return;
+        }
+        try {
+            long credit = spool.append(frame.buffer());
+            if (credit > 0) {
+                sendCredit(transfer, credit);
+            }
+            spool.pumpAll();
+        } catch (IOException e) {
+            System.out.println("[SPOOL] transfer #" + transfer.getId() + " gagal: " + e.getMessage());
+            abortSpool(transfer, "Spool server gagal.");
+        }
+    }
 
-        String listString = sb.toString();
+    /**
+     * FILE_COMPLETE: teruskan ke penerima transfer lalu hapus dari tabel.
+     */
+    public static void completeFileTransfer(ClientSession from, Message msg) {
+        TransferTable.Transfer transfer = transfers.lookup(msg.getTransferId(), from);
+        if (transfer == null) {
+            return;
+        }
+        ContentCache.Ingest ingest = transfer.takeIngest();
+        if (ingest != null) {
+            ingest.finish();
+        }
+        FileSpool spool = transfer.getSpool();
+        if (transfer.isDirect()) {
+            // FILE_COMPLETE sudah dikirim pengirim lewat koneksi langsung, setelah chunk terakhir
+            transfers.remove(transfer);
+            return;
+        }
+        if (spool == null) {
+            transfers.remove(transfer);
+            relayToReceivers(transfer, OutboundFrame.of(msg));
+            return;
+        }
+        // FILE_COMPLETE ikut di spool; transfer tetap di tabel sampai spool dibuang
+        try {
+            spool.complete(OutboundFrame.of(msg).buffer());
+        } catch (IOException e) {
+            System.out.println("[SPOOL] transfer #" + transfer.getId() + " gagal: " + e.getMessage());
+            abortSpool(transfer, "Spool server gagal.");
+        }
+    }
+
+    /**
+     * FILE_CREDIT dari penerima: teruskan ke pengirim kredit gabungan (terkecil
+     * di antara penerima yang tersisa). Transfer ber-spool: kredit hanya
+     * menggerakkan kursor penerima itu di spool.
+     */
+    public static void grantFileCredit(ClientSession receiver, Message msg) {
+        grantFileCredit(receiver, msg.getTransferId(), msg.getFileSize());
+    }
+
+    /**
+     * @param credit kredit dari penerima (fileSize pada FILE_CREDIT)
+     */
+    public static void grantFileCredit(ClientSession receiver, long transferId, long credit) {
+        TransferTable.Transfer transfer = transfers.lookupReceiver(transferId, receiver);
+        if (transfer == null) {
+            return;
+        }
+        if (transfer.getSpool() != null) {
+            transfer.getSpool().grant(receiver, credit);
+            return;
+        }
+        long combined = transfer.grant(receiver, credit);
+        if (combined > 0) {
+            sendCredit(transfer, combined);
+        }
+    }
 
-        Message msg = new Message(MessageType.USER_LIST_UPDATE);
+    /**
+     * FILE_REJECT dari penerima: penerima ini tidak lagi dikirimi chunk. Jika
+     * tidak ada penerima tersisa, pengirim diberi tahu supaya langsung berhenti.
+     * Dari pengirim (gagal membaca file sendiri): transfer dihapus dan semua
+     * penerima dibatalkan, tanpa menunggu pengirim putus.
+     */
+    public static void rejectFileTransfer(ClientSession from, Message msg) {
+        TransferTable.Transfer owned = transfers.lookup(msg.getTransferId(), from);
+        if (owned != null) {
+            // Spool yang sudah lengkap tidak butuh pengirim lagi (sama seperti saat pengirim putus)
+            if (owned.getSpool() == null || !owned.getSpool().isComplete()) {
+                transfers.end(owned.getId(), from);
+                cancelToReceivers(owned, msg.getContent() != null ? msg.getContent() : "Pengirim membatalkan.");
+            }
+            return;
+        }
+        TransferTable.Transfer transfer = transfers.lookupReceiver(msg.getTransferId(), from);
+        if (transfer != null) {
+            dropFileReceiver(transfer, from, from.getUsername() + " menolak file.", false);
+        }
+    }
+
+    /**
+     * FILE_RESUME. Dari penerima (offset + checksum .part miliknya) diteruskan ke
+     * pengirim; dari pengirim (offset yang dipakai) diteruskan ke penerima.
+     * Transfer ke banyak penerima (termasuk yang ber-spool) tidak bisa dilanjutkan
+     * per penerima, jadi penerima tersebut langsung dijawab mulai dari 0.
+     */
+    public static void resumeFileTransfer(ClientSession from, Message msg) {
+        TransferTable.Transfer transfer = transfers.lookup(msg.getTransferId(), from);
+        if (transfer != null) {
+            if (msg.getFileSize() > 0) {
+                discardIngest(transfer); // awal file tidak lewat server, tidak bisa di-cache
+            }
+            relayToReceivers(transfer, OutboundFrame.of(msg));
+            return;
+        }
+        transfer = transfers.lookupReceiver(msg.getTransferId(), from);
+        if (transfer == null) {
+            return;
+        }
+        if (transfer.getReceivers().size() == 1 && transfer.getSpool() == null) {
+            transfer.getOwner().sendMessage(msg);
+        } else {
+            Message restart = new Message(MessageType.FILE_RESUME);
+            restart.setSender("Server");
+            restart.setTransferId(transfer.getId());
+            from.sendMessage(restart);
+        }
+    }
+
+    /**
+     * FILE_DELTA. Tanda tangan dari penerima diteruskan ke pengirim; balasan
+     * pengirim (blockSize, 0 = kirim utuh) diteruskan ke penerima. Seperti
+     * FILE_RESUME, hanya untuk transfer ke satu penerima tanpa spool; selain
+     * itu penerima langsung dijawab 0.
+     */
+    public static void deltaFileTransfer(ClientSession from, Message msg) {
+        TransferTable.Transfer transfer = transfers.lookup(msg.getTransferId(), from);
+        if (transfer != null) {
+            if (msg.getFileSize() > 0) {
+                discardIngest(transfer); // yang lewat server hanya instruksi, bukan isi file
+            }
+            relayToReceivers(transfer, OutboundFrame.of(msg));
+            return;
+        }
+        transfer = transfers.lookupReceiver(msg.getTransferId(), from);
+        if (transfer == null) {
+            return;
+        }
+        if (transfer.getReceivers().size() == 1 && transfer.getSpool() == null) {
+            transfer.getOwner().sendMessage(msg);
+        } else {
+            Message full = new Message(MessageType.FILE_DELTA);
+            full.setSender("Server");
+            full.setTransferId(transfer.getId());
+            from.sendMessage(full);
+        }
+    }
+
+    /**
+     * FILE_P2P. Dari penerima: tawaran port + token. Server mengisi alamat IP
+     * penerima (seperti yang server lihat) lalu meneruskannya ke pengirim.
+     * Dari pengirim: hasil percobaan koneksi (1 = langsung, 0 = relay),
+     * diteruskan ke penerima. Hanya transfer ke satu penerima tanpa spool;
+     * selain itu penerima langsung dijawab 0.
+     */
+    public static void directFileTransfer(ClientSession from, Message msg) {
+        TransferTable.Transfer transfer = transfers.lookup(msg.getTransferId(), from);
+        if (transfer != null) {
+            if (msg.getFileSize() == 1) {
+                transfer.setDirect(true);
+                discardIngest(transfer); // isi file tidak lewat server
+                System.out.println("[FILE P2P] transfer #" + transfer.getId() + " langsung antar klien");
+            }
+            Message result = new Message(MessageType.FILE_P2P);
+            result.setSender(from.getUsername());
+            result.setTransferId(transfer.getId());
+            result.setFileSize(msg.getFileSize() == 1 ? 1 : 0);
+            relayToReceivers(transfer, OutboundFrame.of(result));
+            return;
+        }
+        transfer = transfers.lookupReceiver(msg.getTransferId(), from);
+        if (transfer == null) {
+            return;
+        }
+        if (ServerConfig.P2P_ENABLED && transfer.getReceivers().size() == 1 && transfer.getSpool() == null
+                && msg.getFileSize() > 0 && msg.getFileSize() <= 65535) {
+            Message offer = new Message(MessageType.FILE_P2P);
+            offer.setSender(from.getUsername());
+            offer.setTransferId(transfer.getId());
+            offer.setContent(from.getRemoteHost());
+            offer.setFileSize(msg.getFileSize());
+            offer.setChecksum(msg.getChecksum());
+            transfer.getOwner().sendMessage(offer);
+        } else {
+            Message relay = new Message(MessageType.FILE_P2P);
+            relay.setSender("Server");
+            relay.setTransferId(transfer.getId());
+            from.sendMessage(relay);
+        }
+    }
+
+    private static void dropFileReceiver(TransferTable.Transfer transfer, ClientSession receiver, String reason,
+            boolean disconnected) {
+        FileSpool spool = transfer.getSpool();
+        if (spool != null) {
+            transfer.dropReceiver(receiver);
+            boolean drained = spool.dropReader(receiver, disconnected);
+            if (transfer.getReceivers().isEmpty() && !spool.isComplete()) {
+                abortSpool(transfer, reason);
+            } else if (drained) {
+                discardSpool(transfer);
+            }
+            return;
+        }
+        long credit = transfer.dropReceiver(receiver);
+        if (credit == -2) {
+            transfers.remove(transfer);
+            discardIngest(transfer);
+            rejectToOwner(transfer.getOwner(), transfer.getId(), reason);
+        } else if (credit > 0) {
+            sendCredit(transfer, credit);
+        }
+    }
+
+    /**
+     * Upload ber-spool gagal atau tidak punya penerima lagi: pengirim dan
+     * penerima yang tersisa diberi tahu, file spool dibuang.
+     */
+    private static void abortSpool(TransferTable.Transfer transfer, String reason) {
+        discardIngest(transfer);
+        rejectToOwner(transfer.getOwner(), transfer.getId(), reason);
+        for (ClientSession client : transfer.getReceivers()) {
+            rejectToReceiver(client, transfer, reason);
+        }
+        discardSpool(transfer);
+    }
+
+    private static void discardSpool(TransferTable.Transfer transfer) {
+        transfers.remove(transfer);
+        FileSpool spool = transfer.getSpool();
+        if (spools.release(spool)) {
+            System.out.println("[SPOOL] transfer #" + transfer.getId() + " dibuang");
+        }
+        spool.close();
+    }
+
+    /**
+     * Dipanggil SpoolStore untuk spool yang sudah habis dibaca, kedaluwarsa,
+     * atau dibuang demi ruang. Penerima yang belum selesai dibatalkan.
+     */
+    static void evictSpool(FileSpool spool) {
+        TransferTable.Transfer transfer = spool.getTransfer();
+        transfers.remove(transfer);
+        for (ClientSession client : spool.pendingReceivers()) {
+            rejectToReceiver(client, transfer, "File sudah kedaluwarsa di server.");
+        }
+        System.out.println("[SPOOL] transfer #" + transfer.getId() + " dibuang");
+        spool.close();
+    }
+
+    private static void rejectToReceiver(ClientSession receiver, TransferTable.Transfer transfer, String reason) {
+        Message msg = new Message(MessageType.FILE_REJECT);
+        msg.setSender(transfer.getOwner().getUsername());
+        msg.setTransferId(transfer.getId());
+        msg.setContent(reason);
+        receiver.sendFrame(OutboundFrame.ofTransferEnd(msg));
+    }
+
+    private static void discardIngest(TransferTable.Transfer transfer) {
+        ContentCache.Ingest ingest = transfer.takeIngest();
+        if (ingest != null) {
+            ingest.discard();
+        }
+    }
+
+    private static void sendCredit(TransferTable.Transfer transfer, long credit) {
+        Message msg = new Message(MessageType.FILE_CREDIT);
         msg.setSender("Server");
-        msg.setRecipient("ALL");
-        msg.setContent(listString);
+        msg.setTransferId(transfer.getId());
+        msg.setFileSize(credit);
+        transfer.getOwner().sendMessage(msg);
+    }
+
+    private static void rejectToOwner(ClientSession owner, long transferId, String reason) {
+        Message msg = new Message(MessageType.FILE_REJECT);
+        msg.setSender("Server");
+        msg.setTransferId(transferId);
+        msg.setContent(reason);
+        owner.sendMessage(msg);
+    }
+
+    /**
+     * Sesi putus: transfer yang dia kirim dibatalkan di sisi penerima, dan dia
+     * dikeluarkan dari transfer yang sedang dia terima.
+     */
+    private static void clearFileTransfers(ClientSession session) {
+        for (TransferTable.Transfer transfer : transfers.clearOwner(session)) {
+            cancelToReceivers(transfer, "Pengirim terputus.");
+        }
+        for (TransferTable.Transfer transfer : transfers.receivingBy(session)) {
+            dropFileReceiver(transfer, session, session.getUsername() + " terputus.", true);
+        }
+    }
+
+    // Transfer yang sudah dikeluarkan dari tabel dibatalkan di sisi penerima
+    private static void cancelToReceivers(TransferTable.Transfer transfer, String reason) {
+        Message cancel = new Message(MessageType.FILE_REJECT);
+        cancel.setSender(transfer.getOwner().getUsername());
+        cancel.setTransferId(transfer.getId());
+        cancel.setContent(reason);
+        relayToReceivers(transfer, OutboundFrame.ofTransferEnd(cancel));
+        discardIngest(transfer);
+        if (transfer.getSpool() != null) {
+            discardSpool(transfer);
+        }
+    }
+
+    private static void relayToReceivers(TransferTable.Transfer transfer, OutboundFrame frame) {
+        for (ClientSession client : transfer.getReceivers()) {
+            client.sendFrame(frame);
+            applyFileBackpressure(transfer.getOwner(), client, frame);
+        }
+    }
+
+    /**
+     * Kalau penerima chunk sudah over budget, berhenti membaca dari pengirim
+     * sampai antrian penerima turun lagi. Socket pengirim yang penuh akan
+     * memperlambat pengirim secara alami (TCP backpressure).
+     */
+    private static void applyFileBackpressure(ClientSession from, ClientSession to, OutboundFrame frame) {
+        if (!ServerConfig.OUTBOUND_PAUSE_FILE || frame.getType() != MessageType.FILE_CHUNK || from == null) {
+            return;
+        }
+        if (to.getOutbound().isOverBudget()) {
+            from.pauseReading();
+            to.getOutbound().addDrainListener(from::resumeReading);
+        }
+    }
+
+    /**
+     * Kirim daftar user lengkap + versi presence ke satu klien.
+     * Dipakai saat CONNECT dan saat klien melaporkan versinya tertinggal.
+     */
+    public static void sendUserSnapshot(ClientSession client) {
+        presenceLock.lock();
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (ClientSession session : onlineUsers.values()) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(presenceEntry(session));
+            }
+            String listString = sb.toString();
+
+            Message msg = new Message(MessageType.USER_LIST_UPDATE);
+            msg.setSender("Server");
+            msg.setRecipient(client.getUsername());
+            msg.setContent(listString);
+            msg.setPresenceVersion(presenceVersion);
 
-        for (ClientHandler client : onlineUsers.values()) {
             client.sendMessage(msg);
+            System.out.println("[SYSTEM] User list snapshot v" + presenceVersion + " -> " + client.getUsername());
+        } finally {
+            presenceLock.unlock();
         }
-        System.out.println("[SYSTEM] Broadcasting User List : " + listString);
     }
 
-    public static synchronized void relayBuzz(Message msg) {
-        String target = msg.getRecipient();
+    /**
+     * Dipanggil PresenceCoalescer sekali per jendela: pesan sistem lalu
+     * delta presence (maksimal satu USER_LEFT + satu USER_JOINED).
+     * Entri berbentuk "id:nama" (lihat presenceEntry).
+     */
+    static void publishPresence(List<String> joinedEntries, List<String> leftEntries) {
+        List<String> joined = new ArrayList<>(joinedEntries.size());
+        List<String> left = new ArrayList<>(leftEntries.size());
+        for (String entry : joinedEntries) {
+            joined.add(entryName(entry));
+        }
+        for (String entry : leftEntries) {
+            left.add(entryName(entry));
+        }
+        presenceLock.lock();
+        try {
+            int events = joined.size() + left.size();
+            if (ServerConfig.PRESENCE_SUMMARY && events > 1) {
+                StringBuilder sb = new StringBuilder();
+                if (!joined.isEmpty()) {
+                    sb.append(joined.size()).append(" user joined: ").append(String.join(", ", joined));
+                }
+                if (!left.isEmpty()) {
+                    if (sb.length() > 0) {
+                        sb.append(" | ");
+                    }
+                    sb.append(left.size()).append(" user left: ").append(String.join(", ", left));
+                }
+                broadcastMessage("Server", sb.toString());
+            } else {
+                for (String username : joined) {
+                    broadcastMessage("Server", username + " has joined the chat.");
+                }
+                for (String username : left) {
+                    broadcastMessage("Server", username + "has left the chat");
+                }
+            }
 
-        if (target.equals("ALL")) {
-            for (ClientHandler client : onlineUsers.values()) {
-                if (!client.getUsername().equals(msg.getSender())) {
-                    client.sendMessage(msg);
+            if (!left.isEmpty()) {
+                presenceVersion++;
+                broadcastPresence(MessageType.USER_LEFT, leftEntries);
+            }
+            if (!joined.isEmpty()) {
+                presenceVersion++;
+                broadcastPresence(MessageType.USER_JOINED, joinedEntries);
+                // Semua klien sudah (atau akan, sesuai urutan antrian) mengenal id-nya
+                for (String entry : joinedEntries) {
+                    unannounced.remove(Integer.parseInt(entry.substring(0, entry.indexOf(':'))));
                 }
             }
-            System.out.println("{BUZZ] " + msg.getSender() + "Buzzed Everyone!");
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    /**
+     * Delta presence (USER_JOINED / USER_LEFT) ke semua user. Dipanggil dengan presenceLock dipegang.
+     * Isi content = daftar entri "id:nama" dipisah koma.
+     */
+    private static void broadcastPresence(MessageType type, List<String> entries) {
+        String names = String.join(",", entries);
+
+        Message msg = new Message(type);
+        msg.setSender("Server");
+        msg.setRecipient("ALL");
+        msg.setContent(names);
+        msg.setPresenceVersion(presenceVersion);
+
+        fanOut(OutboundFrame.of(msg), null);
+        System.out.println("[SYSTEM] Presence v" + presenceVersion + " " + type + " " + names);
+    }
+
+    public static void relayBuzz(ClientSession from, Message request) {
+        Message msg = new Message(MessageType.BUZZ);
+        stampSender(msg, from);
+
+        if (isBroadcast(request)) {
+            msg.setRecipientId(Message.ALL_ID);
+            fanOut(OutboundFrame.of(msg), from);
+            System.out.println("{BUZZ] " + from.getUsername() + "Buzzed Everyone!");
         } else {
-            ClientHandler targetClient = onlineUsers.get(target);
+            ClientSession targetClient = lookupTarget(request);
             if (targetClient != null) {
+                msg.setRecipientId(targetClient.getSessionId());
                 targetClient.sendMessage(msg);
-                System.out.println("[BUZZ] " + msg.getSender() + " --> " + target);
+                System.out.println("[BUZZ] " + from.getUsername() + " --> " + targetClient.getUsername());
             }
         }
     }
 
-    public static synchronized void relayTypingStatus(Message msg) {
-        String target = msg.getRecipient();
+    public static void relayTypingStatus(ClientSession from, Message msg) {
+        relayTypingStatus(from, msg.getType(), msg.getRecipientId(), msg.getRecipient());
+    }
 
-        if ("ALL".equals(target)) {
-            for (ClientHandler client : onlineUsers.values()) {
-                if (!client.getUsername().equals(msg.getSender())) {
-                    client.sendMessage(msg);
-                }
+    public static void relayTypingStatus(ClientSession from, MessageView msg) {
+        relayTypingStatus(from, msg.getType(), msg.getRecipientId(), msg.recipient(names));
+    }
+
+    private static void relayTypingStatus(ClientSession from, MessageType type, int recipientId, String recipient) {
+        int target = Message.ALL_ID;
+        if (!isBroadcast(recipientId, recipient)) {
+            ClientSession targetClient = lookupTarget(recipientId, recipient);
+            if (targetClient == null) {
+                return;
             }
+            target = targetClient.getSessionId();
+        }
+        // Deduplikasi, rate-limit & kedaluwarsa ditangani TypingTracker
+        typing.onSignal(from.getSessionId(), target, type == MessageType.TYPING_START);
+    }
+
+    static void forwardTyping(int senderId, int target, boolean isTyping) {
+        Message msg = new Message(isTyping ? MessageType.TYPING_START : MessageType.TYPING_STOP);
+        ClientSession from = sessionsById.get(senderId);
+        if (from != null) {
+            stampSender(msg, from);
         } else {
-            ClientHandler targetClient = onlineUsers.get(target);
+            msg.setSenderId(senderId); // STOP setelah pengirim keluar: klien masih ingat id-nya
+        }
+        msg.setRecipientId(target);
+
+        if (target == Message.ALL_ID) {
+            fanOut(OutboundFrame.of(msg), from);
+        } else {
+            ClientSession targetClient = sessionsById.get(target);
             if (targetClient != null) {
                 targetClient.sendMessage(msg);
             }
         }
     }
 
+    /**
+     * Kirim satu frame (di-encode sekali) ke semua user online.
+     * Biaya broadcast jadi sebanding dengan byte yang ditulis, bukan N kali encode.
+     *
+     * @param except sesi yang dilewati (biasanya pengirim), boleh null
+     */
+    private static void fanOut(OutboundFrame frame, ClientSession except) {
+        for (ClientSession client : onlineUsers.values()) {
+            if (client != except) {
+                client.sendFrame(frame);
+            }
+        }
+    }
 }
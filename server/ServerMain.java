@@ -3,20 +3,45 @@ package server;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ServerMain {
-    private static final int PORT = 50125;
+    private static final int PORT = ServerConfig.PORT;
 
     // Hashmap untuk menyimpan User yang Online
     public static HashMap<String, ClientHandler> listClients = new HashMap<>();
 
     public static void main(String[] args) {
+        // Mode bisa dioper lewat argumen pertama: "platform" / "virtual" / "nio"
+        String mode = args.length > 0 ? args[0] : ServerConfig.MODE;
+
+        if ("virtual".equalsIgnoreCase(mode)) {
+            runVirtual();
+        } else if ("nio".equalsIgnoreCase(mode)) {
+            NioServer.start(PORT, ServerConfig.NIO_LOOPS);
+        } else {
+            runPlatform();
+        }
+    }
+
+    /**
+     * Mode lama: satu platform thread per klien.
+     */
+    private static void runPlatform() {
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
             System.out.println("[SERVER] Sedang berjalan di port " + PORT + "...");
 
             while (true) {
                 // 1. Tunggu ada yang connect
                 Socket socket = serverSocket.accept();
+                if (!Admission.tryAccept()) {
+                    Admission.reject(socket);
+                    continue;
+                }
                 System.out.println("[SERVER] Ada klien baru masuk!");
 
                 // 2. Buat thread pelayan baru untuk klien ini
@@ -28,4 +53,51 @@ public class ServerMain {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Mode virtual thread (JDK 21): handshake dikerjakan pool kecil yang dibatasi,
+     * lalu loop baca setiap klien jalan di virtual thread sendiri.
+     * Klien idle tidak lagi memakan stack thread OS.
+     */
+    private static void runVirtual() {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor handshakePool = new ThreadPoolExecutor(
+                ServerConfig.HANDSHAKE_THREADS, ServerConfig.HANDSHAKE_THREADS,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(ServerConfig.HANDSHAKE_QUEUE),
+                r -> new Thread(r, "handshake-" + counter.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+
+        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+            System.out.println("[SERVER] Sedang berjalan di port " + PORT + " (virtual threads)...");
+
+            while (true) {
+                Socket socket = serverSocket.accept();
+                if (!Admission.tryAccept()) {
+                    Admission.reject(socket);
+                    continue;
+                }
+                ClientHandler clientHandler = new ClientHandler(socket, Thread.ofVirtual().factory());
+
+                try {
+                    handshakePool.execute(() -> {
+                        if (clientHandler.handshake()) {
+                            Thread.ofVirtual()
+                                    .name("client-" + clientHandler.getUsername())
+                                    .start(clientHandler);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Antrian handshake penuh: tolak cepat daripada menumpuk socket
+                    System.out.println("[SERVER] Antrian handshake penuh, koneksi ditolak.");
+                    Admission.reject(socket);
+                    clientHandler.closeConnection(); // lepas jatah admission-nya
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            handshakePool.shutdownNow();
+        }
+    }
+}
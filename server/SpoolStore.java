@@ -0,0 +1,144 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Kumpulan FileSpool aktif + kebijakan kapasitas & retensi.
+ *
+ * Kapasitas dipesan di depan sebesar ukuran file yang diumumkan FILE_REQUEST.
+ * Kalau penuh, spool lengkap yang paling lama dibuang dulu; kalau tetap tidak
+ * muat, transfer itu di-relay langsung seperti transfer ke satu user.
+ * Sweeper membuang spool yang sudah habis dibaca semua penerimanya, atau yang
+ * sudah lengkap lebih lama dari SPOOL_RETENTION_MS.
+ */
+public class SpoolStore {
+
+    // Sisa ruang untuk header frame (sender, transferId, ...) per chunk
+    private static final long FRAME_OVERHEAD = 4096;
+
+    private final Path dir;
+    private final long maxBytes;
+    private final long retentionMs;
+    private final Consumer<FileSpool> onEvict;
+    private final ScheduledExecutorService sweeper;
+
+    // Dijaga monitor 'this'
+    private final List<FileSpool> spools = new ArrayList<>();
+    private long reservedBytes = 0;
+
+    /**
+     * @param onEvict dipanggil (di luar lock) untuk spool yang dibuang; pemanggil
+     *                mengabari penerima yang belum selesai lalu menutup spool.
+     */
+    public SpoolStore(String dir, long maxBytes, long retentionMs, long sweepMs, Consumer<FileSpool> onEvict) {
+        this.dir = Paths.get(dir);
+        this.maxBytes = maxBytes;
+        this.retentionMs = retentionMs;
+        this.onEvict = onEvict;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "spool-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return spool baru, atau null jika tidak muat / gagal dibuat (relay langsung).
+     */
+    public FileSpool open(TransferTable.Transfer transfer, long fileSize, Collection<ClientSession> receivers) {
+        long reserve = fileSize + fileSize / 64 + FRAME_OVERHEAD;
+        List<FileSpool> evicted = new ArrayList<>();
+        FileSpool spool = null;
+        synchronized (this) {
+            if (fileSize < 0 || reserve > maxBytes) {
+                return null;
+            }
+            // Buang spool lengkap tertua sampai muat
+            while (reservedBytes + reserve > maxBytes) {
+                FileSpool oldest = oldestComplete();
+                if (oldest == null) {
+                    break;
+                }
+                detach(oldest);
+                evicted.add(oldest);
+            }
+            if (reservedBytes + reserve <= maxBytes) {
+                try {
+                    Files.createDirectories(dir);
+                    Path path = dir.resolve("transfer-" + Long.toHexString(transfer.getId()) + ".spool");
+                    Files.deleteIfExists(path);
+                    spool = new FileSpool(transfer, path, reserve, receivers);
+                    spools.add(spool);
+                    reservedBytes += reserve;
+                } catch (IOException e) {
+                    System.out.println("[SPOOL] Gagal membuat spool: " + e.getMessage());
+                }
+            }
+        }
+        for (FileSpool old : evicted) {
+            System.out.println("[SPOOL] Dibuang untuk ruang: transfer #" + old.getTransfer().getId());
+            onEvict.accept(old);
+        }
+        return spool;
+    }
+
+    /**
+     * Lepas spool dari store (ruangnya dikembalikan). Tidak menutup file.
+     */
+    public synchronized boolean release(FileSpool spool) {
+        return detach(spool);
+    }
+
+    private boolean detach(FileSpool spool) {
+        if (!spools.remove(spool)) {
+            return false;
+        }
+        reservedBytes -= spool.getReservedBytes();
+        return true;
+    }
+
+    private FileSpool oldestComplete() {
+        FileSpool oldest = null;
+        for (FileSpool spool : spools) {
+            if (spool.isComplete() && (oldest == null || spool.getCompletedAt() < oldest.getCompletedAt())) {
+                oldest = spool;
+            }
+        }
+        return oldest;
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        List<FileSpool> expired = new ArrayList<>();
+        synchronized (this) {
+            for (FileSpool spool : new ArrayList<>(spools)) {
+                if (spool.isDrained() || (spool.isComplete() && now - spool.getCompletedAt() > retentionMs)) {
+                    detach(spool);
+                    expired.add(spool);
+                }
+            }
+        }
+        for (FileSpool spool : expired) {
+            try {
+                onEvict.accept(spool);
+            } catch (RuntimeException e) {
+                System.out.println("[SPOOL] Error saat membuang spool: " + e.getMessage());
+            }
+        }
+    }
+
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+}
@@ -0,0 +1,116 @@
+package server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timing wheel: satu thread dan satu larik slot untuk ribuan batas waktu
+ * per koneksi, bukan satu timer/PriorityQueue entry per koneksi. Menjadwalkan
+ * dan kedaluwarsa sama-sama O(1); presisinya satu tick (batas waktu bisa
+ * terlambat paling banyak tickMs).
+ *
+ * Timeout dipakai ulang: schedule() boleh dipanggil lagi untuk objek yang sama
+ * setelah run()-nya jalan (termasuk dari dalam run()), jadi penjadwalan ulang
+ * tidak membuat objek baru. Tidak ada cancel: pemilik Timeout cukup mengabaikan
+ * run() yang sudah tidak relevan.
+ */
+public class TimingWheel {
+
+    /**
+     * Satu batas waktu. Hanya boleh ada di wheel satu kali pada satu saat.
+     */
+    public abstract static class Timeout {
+        private Timeout next; // rantai di dalam satu slot (hanya disentuh thread wheel)
+        private long rounds;  // putaran penuh yang masih harus dilewati
+        private long delayTicks;
+
+        /**
+         * Dipanggil di thread wheel. Harus cepat; I/O cukup diantrikan.
+         */
+        protected abstract void run();
+    }
+
+    private final long tickMs;
+    private final Timeout[] slots;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> inbox = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private long cursor; // tick yang sedang/terakhir diproses (hanya thread wheel)
+
+    /**
+     * @param slots jumlah slot (dibulatkan ke pangkat dua)
+     */
+    public TimingWheel(String name, long tickMs, int slots) {
+        int size = Integer.highestOneBit(Math.max(2, slots - 1) << 1);
+        this.tickMs = Math.max(1, tickMs);
+        this.slots = new Timeout[size];
+        this.mask = size - 1;
+        this.thread = new Thread(this::loop, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Jalankan timeout.run() setelah kira-kira delayMs. Aman dari thread mana pun.
+     */
+    public void schedule(Timeout timeout, long delayMs) {
+        timeout.delayTicks = Math.max(1, (delayMs + tickMs - 1) / tickMs);
+        if (Thread.currentThread() == thread) {
+            insert(timeout); // penjadwalan ulang dari dalam run(): langsung, tanpa inbox
+        } else {
+            inbox.add(timeout);
+        }
+    }
+
+    private void loop() {
+        long start = System.nanoTime();
+        while (true) {
+            // Tidur sampai awal tick berikutnya (tidak menumpuk drift antar tick)
+            long due = start + (cursor + 1) * tickMs * 1_000_000L;
+            long sleep = due - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep / 1_000_000L, (int) (sleep % 1_000_000L));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            Timeout pending;
+            while ((pending = inbox.poll()) != null) {
+                insert(pending);
+            }
+
+            cursor++;
+            expire(slots[(int) (cursor & mask)], (int) (cursor & mask));
+        }
+    }
+
+    private void insert(Timeout timeout) {
+        long ticks = timeout.delayTicks;
+        int slot = (int) ((cursor + ticks) & mask);
+        timeout.rounds = (ticks - 1) / slots.length;
+        timeout.next = slots[slot];
+        slots[slot] = timeout;
+    }
+
+    // Proses satu slot: yang putarannya habis dijalankan, sisanya dikembalikan
+    private void expire(Timeout head, int slot) {
+        slots[slot] = null;
+        while (head != null) {
+            Timeout timeout = head;
+            head = head.next;
+            timeout.next = null;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                timeout.next = slots[slot];
+                slots[slot] = timeout;
+                continue;
+            }
+            try {
+                timeout.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
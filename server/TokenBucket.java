@@ -0,0 +1,58 @@
+package server;
+
+/**
+ * Token bucket sederhana: isi ulang ratePerSecond token per detik, paling
+ * banyak burst token. Tidak thread-safe; dipakai satu thread pemilik saja
+ * (thread pembaca sesi, atau thread accept).
+ */
+final class TokenBucket {
+
+    private final double perNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(double ratePerSecond, double burst) {
+        this.perNano = ratePerSecond / 1_000_000_000.0;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * @return null jika rate <= 0 (tanpa batas).
+     */
+    static TokenBucket of(double ratePerSecond, double burst) {
+        return ratePerSecond > 0 ? new TokenBucket(ratePerSecond, burst) : null;
+    }
+
+    /**
+     * Ambil n token jika cukup; jika tidak, saldo tidak berubah.
+     */
+    boolean tryTake(double n) {
+        refill();
+        if (tokens < n) {
+            return false;
+        }
+        tokens -= n;
+        return true;
+    }
+
+    /**
+     * Ambil n token walaupun saldo kurang (berutang). Dipakai untuk data yang
+     * tidak boleh dibuang (chunk file): pengirimnya diperlambat, bukan ditolak.
+     *
+     * @return ms sampai utang lunas (0 jika saldo masih cukup).
+     */
+    long take(double n) {
+        refill();
+        tokens -= n;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / perNano / 1_000_000.0);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * perNano);
+        lastRefill = now;
+    }
+}
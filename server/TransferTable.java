@@ -0,0 +1,242 @@
+package server;
+
+import common.Message;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tabel transfer file yang sedang berjalan: transferId -> (pengirim, penerima).
+ *
+ * FILE_REQUEST mendaftarkan transfer beserta sesi penerimanya, FILE_CHUNK
+ * dirutekan lewat tabel ini (chunk tidak membawa recipient), FILE_COMPLETE
+ * menghapusnya. Chunk dengan transferId milik sesi lain ditolak, jadi dua
+ * transfer tidak bisa saling tumpang.
+ *
+ * Flow control: tiap penerima memberi kredit berupa offset byte absolut
+ * (FILE_CREDIT). Pengirim hanya boleh maju sampai kredit terkecil di antara
+ * penerima yang tersisa; penerima yang menolak dikeluarkan dari hitungan.
+ *
+ * Transfer ke "ALL" bisa punya FileSpool: kredit penerima diberikan ke spool,
+ * bukan ke pengirim, dan transfer tetap di tabel setelah FILE_COMPLETE sampai
+ * spool dibuang.
+ */
+public class TransferTable {
+
+    public static class Transfer {
+        final long id;
+        final ClientSession owner;
+        final String target; // nama user atau "ALL"
+        final String fileName;
+
+        // Penerima aktif -> offset kredit yang sudah diberikan (dijaga synchronized(this))
+        private final Map<ClientSession, Long> receivers = new ConcurrentHashMap<>();
+        private long forwardedCredit = 0;
+        private volatile FileSpool spool;
+        private volatile boolean direct; // data lewat koneksi P2P, server tidak me-relay apa pun
+        private ContentCache.Ingest ingest; // salinan upload untuk ContentCache (dijaga synchronized(this))
+        // Cache hit yang menunggu FILE_PROOF: jawaban yang benar + FILE_REQUEST aslinya (dijaga synchronized(this))
+        private byte[] expectedProof;
+        private Message pendingRequest;
+
+        Transfer(long id, ClientSession owner, String target, String fileName) {
+            this.id = id;
+            this.owner = owner;
+            this.target = target;
+            this.fileName = fileName;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public ClientSession getOwner() {
+            return owner;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public FileSpool getSpool() {
+            return spool;
+        }
+
+        void setSpool(FileSpool spool) {
+            this.spool = spool;
+        }
+
+        synchronized ContentCache.Ingest getIngest() {
+            return ingest;
+        }
+
+        synchronized void setIngest(ContentCache.Ingest ingest) {
+            this.ingest = ingest;
+        }
+
+        /**
+         * Ambil & lepas ingest (hanya satu pemanggil yang menyelesaikan/membuangnya).
+         */
+        synchronized ContentCache.Ingest takeIngest() {
+            ContentCache.Ingest taken = ingest;
+            ingest = null;
+            return taken;
+        }
+
+        synchronized void challenge(byte[] expectedProof, Message request) {
+            this.expectedProof = expectedProof;
+            this.pendingRequest = request;
+        }
+
+        /**
+         * Ambil & lepas tantangan cache yang masih terbuka (hanya jawaban pertama yang dihitung).
+         *
+         * @return FILE_REQUEST aslinya, atau null jika tidak ada tantangan.
+         */
+        synchronized Message takeChallenge() {
+            Message request = pendingRequest;
+            pendingRequest = null;
+            return request;
+        }
+
+        synchronized boolean matchesProof(byte[] proof) {
+            return expectedProof != null && proof != null && MessageDigest.isEqual(expectedProof, proof);
+        }
+
+        public boolean isDirect() {
+            return direct;
+        }
+
+        void setDirect(boolean direct) {
+            this.direct = direct;
+        }
+
+        public Collection<ClientSession> getReceivers() {
+            return receivers.keySet();
+        }
+
+        /**
+         * Catat kredit dari satu penerima.
+         *
+         * @return kredit gabungan baru yang perlu diteruskan ke pengirim, atau -1
+         *         jika belum ada kemajuan.
+         */
+        synchronized long grant(ClientSession receiver, long offset) {
+            Long previous = receivers.get(receiver);
+            if (previous == null || offset <= previous) {
+                return -1;
+            }
+            receivers.put(receiver, offset);
+            return advance();
+        }
+
+        /**
+         * Keluarkan satu penerima (menolak / putus).
+         *
+         * @return -2 jika tidak ada penerima tersisa, kredit gabungan baru jika
+         *         penerima ini yang menahan, atau -1 jika tidak ada perubahan.
+         */
+        synchronized long dropReceiver(ClientSession receiver) {
+            if (receivers.remove(receiver) == null) {
+                return -1;
+            }
+            return receivers.isEmpty() ? -2 : advance();
+        }
+
+        private long advance() {
+            long min = Long.MAX_VALUE;
+            for (long credit : receivers.values()) {
+                min = Math.min(min, credit);
+            }
+            if (min <= forwardedCredit) {
+                return -1;
+            }
+            forwardedCredit = min;
+            return min;
+        }
+    }
+
+    private final Map<Long, Transfer> transfers = new ConcurrentHashMap<>();
+
+    /**
+     * @return transfer baru, atau null jika id tidak valid, sudah dipakai,
+     *         atau tidak ada penerima.
+     */
+    public Transfer begin(long id, ClientSession owner, String target, String fileName,
+            Collection<ClientSession> receivers) {
+        if (id == 0 || target == null || receivers.isEmpty()) {
+            return null;
+        }
+        Transfer transfer = new Transfer(id, owner, target, fileName);
+        for (ClientSession receiver : receivers) {
+            transfer.receivers.put(receiver, 0L);
+        }
+        return transfers.putIfAbsent(id, transfer) == null ? transfer : null;
+    }
+
+    /**
+     * Transfer aktif milik sesi ini, atau null (tidak ada / milik orang lain).
+     */
+    public Transfer lookup(long id, ClientSession owner) {
+        Transfer transfer = transfers.get(id);
+        return transfer != null && transfer.owner == owner ? transfer : null;
+    }
+
+    /**
+     * Transfer aktif yang sesi ini terima, atau null.
+     */
+    public Transfer lookupReceiver(long id, ClientSession receiver) {
+        Transfer transfer = transfers.get(id);
+        return transfer != null && transfer.receivers.containsKey(receiver) ? transfer : null;
+    }
+
+    public Transfer end(long id, ClientSession owner) {
+        Transfer transfer = lookup(id, owner);
+        if (transfer != null) {
+            transfers.remove(id, transfer);
+        }
+        return transfer;
+    }
+
+    public void remove(Transfer transfer) {
+        transfers.remove(transfer.id, transfer);
+    }
+
+    /**
+     * Sesi putus: buang semua transfer yang dia kirim. Transfer yang spool-nya
+     * sudah lengkap tetap disimpan; penerimanya tidak butuh pengirim lagi.
+     *
+     * @return transfer yang dibuang (penerimanya perlu dikabari).
+     */
+    public List<Transfer> clearOwner(ClientSession owner) {
+        List<Transfer> removed = new ArrayList<>();
+        transfers.values().removeIf(t -> {
+            if (t.owner == owner && (t.spool == null || !t.spool.isComplete())) {
+                removed.add(t);
+                return true;
+            }
+            return false;
+        });
+        return removed;
+    }
+
+    /**
+     * Semua transfer yang sesi ini terima.
+     */
+    public List<Transfer> receivingBy(ClientSession receiver) {
+        List<Transfer> result = new ArrayList<>();
+        for (Transfer t : transfers.values()) {
+            if (t.receivers.containsKey(receiver)) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        return transfers.size();
+    }
+}
@@ -0,0 +1,248 @@
+package server;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tabel status mengetik per (pengirim, tujuan), keduanya id sesi (tujuan
+ * Message.ALL_ID untuk semua).
+ *
+ * - Transisi ganda (START saat sudah START) tidak diteruskan, hanya memperpanjang masa berlaku.
+ * - Transisi yang terlalu rapat (flapping) ditahan; status terakhir dikirim oleh sweeper
+ * setelah jeda minimum lewat.
+ * - Status "typing" yang tidak diperbarui sampai TTL habis (klien hilang tanpa
+ * TYPING_STOP) otomatis diakhiri dengan TYPING_STOP sintetis.
+ *
+ * Sinyal mengetik termasuk jalur panas, jadi kuncinya tidak di-box: tabel
+ * open addressing dengan kunci long, dipecah ke beberapa stripe yang masing-masing
+ * dijaga monitornya sendiri. State yang sudah STOP dibiarkan sampai disapu, supaya
+ * START berikutnya dari pasangan yang sama tidak membuat objek baru.
+ */
+public class TypingTracker {
+
+    private static final int STRIPES = 16;
+
+    private static class State {
+        final long key;
+        boolean typing;          // status terakhir yang diketahui dari klien
+        boolean forwardedTyping; // status terakhir yang sudah diteruskan ke penerima
+        long lastForwardAt;
+        long expiresAt;
+
+        State(long key) {
+            this.key = key;
+        }
+    }
+
+    private final Table[] tables = new Table[STRIPES];
+    private final long minIntervalMs;
+    private final long ttlMs;
+    private final Forwards swept = new Forwards(); // hanya thread sweeper
+
+    public TypingTracker(long minIntervalMs, long ttlMs, long sweepMs) {
+        this.minIntervalMs = minIntervalMs;
+        this.ttlMs = ttlMs;
+        for (int i = 0; i < tables.length; i++) {
+            tables[i] = new Table();
+        }
+
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "typing-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sinyal TYPING_START / TYPING_STOP dari klien.
+     */
+    public void onSignal(int sender, int target, boolean typing) {
+        long now = System.currentTimeMillis();
+        long key = key(sender, target);
+        Table table = tables[stripe(key)];
+        boolean forward = false;
+
+        synchronized (table) {
+            State state = table.get(key);
+            if (state == null) {
+                if (!typing) {
+                    return; // STOP tanpa START: tidak ada yang perlu dikabarkan
+                }
+                state = new State(key);
+                table.add(state);
+            }
+            state.typing = typing;
+            state.expiresAt = now + ttlMs;
+
+            if (state.forwardedTyping != typing && now - state.lastForwardAt >= minIntervalMs) {
+                state.forwardedTyping = typing;
+                state.lastForwardAt = now;
+                forward = true;
+            }
+        }
+
+        // Diteruskan di luar lock: sendFrame bisa memutus klien lambat (dan memanggil clearSender)
+        if (forward) {
+            ServerController.forwardTyping(sender, target, typing);
+        }
+    }
+
+    /**
+     * Klien putus: akhiri semua indikator mengetik miliknya sekarang juga.
+     */
+    public void clearSender(int sender) {
+        Forwards stops = new Forwards();
+        for (Table table : tables) {
+            synchronized (table) {
+                for (int i = 0; i < table.slots.length; i++) {
+                    State state = table.slots[i];
+                    while (state != null && senderOf(state.key) == sender) {
+                        if (state.forwardedTyping) {
+                            stops.add(state.key, false);
+                        }
+                        table.removeAt(i); // entri berikutnya bisa bergeser ke slot ini
+                        state = table.slots[i];
+                    }
+                }
+            }
+        }
+        stops.send();
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (Table table : tables) {
+            synchronized (table) {
+                for (int i = 0; i < table.slots.length; i++) {
+                    State state = table.slots[i];
+                    while (state != null) {
+                        if (state.typing && now >= state.expiresAt) {
+                            state.typing = false; // kedaluwarsa
+                        }
+                        if (state.forwardedTyping != state.typing && now - state.lastForwardAt >= minIntervalMs) {
+                            state.forwardedTyping = state.typing;
+                            state.lastForwardAt = now;
+                            swept.add(state.key, state.typing);
+                        }
+                        // Sudah STOP, sudah diteruskan, dan tidak ada sinyal selama TTL: lupakan
+                        if (state.typing || state.forwardedTyping || now < state.expiresAt) {
+                            break;
+                        }
+                        table.removeAt(i);
+                        state = table.slots[i];
+                    }
+                }
+            }
+        }
+        swept.send();
+    }
+
+    private static long key(int sender, int target) {
+        return ((long) sender << 32) | (target & 0xFFFFFFFFL);
+    }
+
+    private static int senderOf(long key) {
+        return (int) (key >>> 32);
+    }
+
+    private static int targetOf(long key) {
+        return (int) key;
+    }
+
+    // Bit atas hash untuk stripe, bit bawah untuk slot di dalam tabel. Kunci
+    // diaduk dulu: banyak pasangan punya tujuan sama (ALL), yaitu 32 bit bawah yang sama
+    private static long hash(long key) {
+        long h = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+        return h ^ (h >>> 33);
+    }
+
+    private static int stripe(long key) {
+        return (int) (hash(key) >>> 60) & (STRIPES - 1);
+    }
+
+    /**
+     * Tabel long -> State dengan linear probing (slot kosong = null). Tidak
+     * thread-safe: dijaga monitor tabel ini.
+     */
+    private static final class Table {
+        State[] slots = new State[16];
+        private int size;
+
+        State get(long key) {
+            int mask = slots.length - 1;
+            for (int i = (int) hash(key) & mask; slots[i] != null; i = (i + 1) & mask) {
+                if (slots[i].key == key) {
+                    return slots[i];
+                }
+            }
+            return null;
+        }
+
+        void add(State state) {
+            if ((size + 1) * 2 > slots.length) {
+                State[] old = slots;
+                slots = new State[old.length * 2];
+                for (State s : old) {
+                    if (s != null) {
+                        insert(s);
+                    }
+                }
+            }
+            insert(state);
+            size++;
+        }
+
+        /**
+         * Kosongkan slot i lalu susun ulang sisa cluster sesudahnya (tanpa tombstone).
+         * Entri hanya bisa bergeser mundur ke slot i, jadi iterasi cukup memeriksa slot i lagi.
+         */
+        void removeAt(int i) {
+            int mask = slots.length - 1;
+            slots[i] = null;
+            size--;
+            for (int j = (i + 1) & mask; slots[j] != null; j = (j + 1) & mask) {
+                State moved = slots[j];
+                slots[j] = null;
+                insert(moved);
+            }
+        }
+
+        private void insert(State state) {
+            int mask = slots.length - 1;
+            int i = (int) hash(state.key) & mask;
+            while (slots[i] != null) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = state;
+        }
+    }
+
+    /**
+     * Sinyal yang dikumpulkan di bawah lock tabel, dikirim setelah lock dilepas.
+     */
+    private static final class Forwards {
+        private long[] keys = new long[16];
+        private boolean[] typing = new boolean[16];
+        private int count;
+
+        void add(long key, boolean isTyping) {
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                typing = Arrays.copyOf(typing, count * 2);
+            }
+            keys[count] = key;
+            typing[count] = isTyping;
+            count++;
+        }
+
+        void send() {
+            for (int i = 0; i < count; i++) {
+                ServerController.forwardTyping(senderOf(keys[i]), targetOf(keys[i]), typing[i]);
+            }
+            count = 0;
+        }
+    }
+}